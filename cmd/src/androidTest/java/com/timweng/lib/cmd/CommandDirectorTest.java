@@ -0,0 +1,123 @@
+package com.timweng.lib.cmd;
+
+import android.os.Bundle;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.timweng.lib.cmd.unit.DelayCommand;
+import com.timweng.lib.cmd.unit.FunctionCommand;
+import com.timweng.lib.cmd.unit.IfCommand;
+import com.timweng.lib.cmd.unit.RandomCommand;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test, CommandDirector needs the Loopers of a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CommandDirectorTest {
+
+    private CommandDirector mDirector;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirector = new CommandDirector();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDirector.release();
+    }
+
+    private static class CompleteListener implements CommandDirector.OnDirectorUpdateListener {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+
+        @Override
+        public void onNext(Command lastCommand, Command nextCommand, Bundle lastBundle) {
+        }
+
+        @Override
+        public void onComplete(Command lastCommand, Bundle lastBundle) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onError(Command lastCommand, Command nextCommand, Bundle errorBundle) {
+        }
+    }
+
+    @Test
+    public void start_rootResolvedToNothingCompletes() throws Exception {
+        CompleteListener listener = new CompleteListener();
+        mDirector.registerListener(listener);
+        IfCommand root = new IfCommand(new IfCommand.Condition() {
+            @Override
+            public boolean test(Bundle bundle) {
+                return false;
+            }
+        }, new DelayCommand(60000), null);
+
+        assertTrue(mDirector.start(root));
+        assertFalse(mDirector.isProcessing());
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+
+        // The director is free for the next run
+        assertTrue(mDirector.start(new DelayCommand(60000)));
+        assertTrue(mDirector.isProcessing());
+        assertTrue(mDirector.stop());
+    }
+
+    @Test
+    public void start_emptyRandomRootStartsPendingRun() throws Exception {
+        mDirector.setAdmissionQueue(2, CommandDirector.AdmissionPolicy.REJECT);
+        assertTrue(mDirector.start(new DelayCommand(60000)));
+        assertTrue(mDirector.start(new RandomCommand(), "empty"));
+        assertTrue(mDirector.start(new DelayCommand(60000), "delay"));
+        assertEquals(2, mDirector.getPendingCount());
+
+        // The empty run completes as soon as it starts, the next pending run starts after it
+        assertTrue(mDirector.stop());
+        assertEquals(0, mDirector.getPendingCount());
+        assertTrue(mDirector.isProcessing());
+        assertTrue(mDirector.stop("delay"));
+    }
+
+    @Test
+    public void stop_doesNotWaitForRunningFunction() throws Exception {
+        final CountDownLatch isRunning = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean isReturned = new AtomicBoolean(false);
+        Command blocking = new FunctionCommand() {
+            @Override
+            public Bundle function(Bundle inputBundle) {
+                isRunning.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                isReturned.set(true);
+                return inputBundle;
+            }
+        };
+        // Started by the completion of the delay, in a dispatch on the main thread
+        assertTrue(mDirector.start(new DelayCommand(10).setNext(blocking)));
+        assertTrue(isRunning.await(5, TimeUnit.SECONDS));
+
+        try {
+            assertTrue(mDirector.stop());
+            assertFalse(isReturned.get());
+            assertFalse(mDirector.isProcessing());
+        } finally {
+            release.countDown();
+        }
+    }
+}
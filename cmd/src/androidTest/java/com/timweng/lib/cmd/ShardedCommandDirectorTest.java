@@ -0,0 +1,75 @@
+package com.timweng.lib.cmd;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.timweng.lib.cmd.unit.DelayCommand;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test, the shards need the Loopers of a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShardedCommandDirectorTest {
+
+    private static final String KEY = "key";
+
+    private ShardedCommandDirector mDirector;
+    private String mOtherKey;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirector = new ShardedCommandDirector(2);
+        // Another key of the same shard
+        int index = ShardedCommandDirector.indexOf(KEY, mDirector.getShardCount());
+        for (int i = 0; mOtherKey == null; i++) {
+            if (ShardedCommandDirector.indexOf("other" + i, mDirector.getShardCount()) == index) {
+                mOtherKey = "other" + i;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDirector.release();
+    }
+
+    @Test
+    public void start_queuesAnotherKeyOfBusyShard() throws Exception {
+        assertTrue(mDirector.start(KEY, new DelayCommand(60000)));
+        assertTrue(mDirector.start(mOtherKey, new DelayCommand(60000)));
+        assertEquals(1, mDirector.getShard(KEY).getPendingCount());
+    }
+
+    @Test
+    public void control_onlyAffectsTheRunOfTheKey() throws Exception {
+        assertTrue(mDirector.start(KEY, new DelayCommand(60000)));
+        CommandDirector shard = mDirector.getShard(KEY);
+
+        assertFalse(mDirector.pause(mOtherKey));
+        assertTrue(mDirector.pause(KEY));
+        assertFalse(mDirector.resume(mOtherKey));
+        assertTrue(mDirector.resume(KEY));
+
+        assertFalse(mDirector.stop(mOtherKey));
+        assertTrue(shard.isProcessing());
+        assertTrue(mDirector.stop(KEY));
+        assertFalse(shard.isProcessing());
+    }
+
+    @Test
+    public void stop_startsTheQueuedKey() throws Exception {
+        assertTrue(mDirector.start(KEY, new DelayCommand(60000)));
+        assertTrue(mDirector.start(mOtherKey, new DelayCommand(60000)));
+
+        assertTrue(mDirector.stop(KEY));
+        assertFalse(mDirector.stop(KEY));
+        assertTrue(mDirector.getShard(mOtherKey).isProcessing());
+        assertTrue(mDirector.stop(mOtherKey));
+    }
+}
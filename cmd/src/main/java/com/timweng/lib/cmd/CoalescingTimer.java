@@ -0,0 +1,190 @@
+package com.timweng.lib.cmd;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The timer of CommandDirector, a delayed Runnable can run any time within its tolerance, so the Runnables of
+ * overlapping windows run in a single wake-up of the worker thread instead of one each.
+ * <p>
+ * The timer wakes up at the earliest latest-time of the waiting Runnables, and runs every Runnable whose earliest
+ * time has come.
+ */
+public final class CoalescingTimer {
+    private static final String TAG = "CoalescingTimer";
+
+    private static final long NO_WAKE_UP = Long.MAX_VALUE;
+
+    private static final class Entry {
+        final Runnable mRunnable;
+        final long mEarliest;
+        final long mLatest;
+        boolean mIsDone = false;
+
+        Entry(Runnable runnable, long earliest, long latest) {
+            mRunnable = runnable;
+            mEarliest = earliest;
+            mLatest = latest;
+        }
+    }
+
+    private static final Comparator<Entry> EARLIEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mEarliest < rhs.mEarliest ? -1 : (lhs.mEarliest == rhs.mEarliest ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> LATEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mLatest < rhs.mLatest ? -1 : (lhs.mLatest == rhs.mLatest ? 0 : 1);
+        }
+    };
+
+    private final Handler mHandler;
+    // The removed and done entries stay in the queues until they reach the head
+    private final PriorityQueue<Entry> mByEarliest = new PriorityQueue<Entry>(16, EARLIEST_FIRST);
+    private final PriorityQueue<Entry> mByLatest = new PriorityQueue<Entry>(16, LATEST_FIRST);
+    private final IdentityHashMap<Runnable, Entry> mEntryMap = new IdentityHashMap<Runnable, Entry>();
+    private long mWakeTime = NO_WAKE_UP;
+    private long mWakeUpCount = 0;
+    private long mRunCount = 0;
+
+    /**
+     * @param handler the handler the Runnables run on, null for tests which call onWakeUp() themselves
+     */
+    public CoalescingTimer(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Run the Runnable after delayMillis, at most toleranceMillis later. Posting a waiting Runnable again replaces it.
+     *
+     * @param runnable        the Runnable
+     * @param delayMillis     the delay in milliseconds
+     * @param toleranceMillis how much later the Runnable can run, 0 means run on time
+     */
+    public void postDelayed(Runnable runnable, long delayMillis, long toleranceMillis) {
+        postDelayed(runnable, delayMillis, toleranceMillis, SystemClock.uptimeMillis());
+    }
+
+    synchronized void postDelayed(Runnable runnable, long delayMillis, long toleranceMillis, long now) {
+        removeLocked(runnable);
+        long earliest = now + Math.max(0, delayMillis);
+        Entry entry = new Entry(runnable, earliest, earliest + Math.max(0, toleranceMillis));
+        mEntryMap.put(runnable, entry);
+        mByEarliest.add(entry);
+        mByLatest.add(entry);
+        scheduleLocked();
+    }
+
+    public synchronized void removeCallbacks(Runnable runnable) {
+        removeLocked(runnable);
+        scheduleLocked();
+    }
+
+    /**
+     * Remove all the waiting Runnables
+     */
+    public synchronized void clear() {
+        mEntryMap.clear();
+        mByEarliest.clear();
+        mByLatest.clear();
+        scheduleLocked();
+    }
+
+    /**
+     * Get the count of times the timer woke up the worker thread
+     *
+     * @return the wake-up count
+     */
+    public synchronized long getWakeUpCount() {
+        return mWakeUpCount;
+    }
+
+    /**
+     * Get the count of Runnables the timer ran, the count over getWakeUpCount() is the saving of the tolerances
+     *
+     * @return the run count
+     */
+    public synchronized long getRunCount() {
+        return mRunCount;
+    }
+
+    synchronized long getWakeTime() {
+        return mWakeTime;
+    }
+
+    private void removeLocked(Runnable runnable) {
+        Entry entry = mEntryMap.remove(runnable);
+        if (entry != null) {
+            entry.mIsDone = true;
+        }
+    }
+
+    private void scheduleLocked() {
+        Entry head;
+        while ((head = mByLatest.peek()) != null && head.mIsDone) {
+            mByLatest.poll();
+        }
+        long wakeTime = head == null ? NO_WAKE_UP : head.mLatest;
+        if (wakeTime == mWakeTime) {
+            return;
+        }
+        mWakeTime = wakeTime;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mWakeUpRunnable);
+            if (wakeTime != NO_WAKE_UP) {
+                mHandler.postAtTime(mWakeUpRunnable, wakeTime);
+            }
+        }
+    }
+
+    /**
+     * Run every Runnable whose earliest time has come
+     *
+     * @param now the uptime in milliseconds
+     * @return the count of Runnables run
+     */
+    int onWakeUp(long now) {
+        List<Runnable> runList = new ArrayList<Runnable>();
+        synchronized (this) {
+            mWakeTime = NO_WAKE_UP;
+            Entry entry;
+            while ((entry = mByEarliest.peek()) != null && entry.mEarliest <= now) {
+                mByEarliest.poll();
+                if (!entry.mIsDone) {
+                    entry.mIsDone = true;
+                    mEntryMap.remove(entry.mRunnable);
+                    runList.add(entry.mRunnable);
+                }
+            }
+            if (!runList.isEmpty()) {
+                mWakeUpCount++;
+                mRunCount += runList.size();
+            }
+            scheduleLocked();
+        }
+        if (!runList.isEmpty()) {
+            Debug.logD(TAG, "onWakeUp() run " + runList.size());
+        }
+        for (Runnable runnable : runList) {
+            runnable.run();
+        }
+        return runList.size();
+    }
+
+    private final Runnable mWakeUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onWakeUp(SystemClock.uptimeMillis());
+        }
+    };
+}
@@ -4,13 +4,31 @@ package com.timweng.lib.cmd;
 import android.os.Bundle;
 import android.os.Handler;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * The base Command, it's a abstract class, if user want to create customized Command, need to extend this class
  */
 public abstract class Command {
 
     private static final String TAG = "Command";
-    private static volatile int sCount = 0; // for Id
+
+    // Ids are taken from sIdBlock of the current thread, a thread takes a new block of ID_BLOCK_SIZE ids at once
+    private static final int ID_BLOCK_SIZE = 64;
+    private static final AtomicInteger sNextIdBlock = new AtomicInteger(0);
+    private static final ThreadLocal<int[]> sIdBlock = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            // {next id, end of the block}
+            return new int[2];
+        }
+    };
+    private static final AtomicIntegerFieldUpdater<Command> ID_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Command.class, "mId");
 
     /**
      * Used by CommandDirector, the callback that can get the Command playing update
@@ -21,16 +39,38 @@ public abstract class Command {
         public void onError(Command callCommand, Bundle bundle);
     }
 
-    private int mId = -1;
+    /**
+     * Used by CommandDirector, the callback that can get the Command progress
+     */
+    public static interface OnCommandProgressListener {
+        public void onProgress(Command callCommand, float progress, Bundle bundle);
+    }
+
+    /**
+     * The dispatch priority, CommandDirector handles the completion of a higher priority Command first
+     */
+    public static enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private volatile int mId = -1;
     protected int mParentId = -1;
 
     private volatile boolean mIsProcessing = false;
     private volatile boolean mIsPause = false;
 
+    private Priority mPriority = null;
+
     protected OnCommandUpdateListener mOnCommandUpdateListener;
+    protected OnCommandProgressListener mOnCommandProgressListener;
     protected Handler mHandler;
+    protected CoalescingTimer mTimer;
 
     protected Command mNextCommand = null;
+    protected CommandSupplier mNextSupplier = null;
+
+    // The uptime CommandDirector started this Command, moved later by the time paused, for LatencyTracker
+    long mStartTime = -1;
 
     /**
      * Get the unique Command ID
@@ -39,12 +79,21 @@ public abstract class Command {
      */
     public int getId() {
         if (mId < 0) {
-            mId = sCount;
-            sCount++;
+            // Two threads can get the first id at the same time, only one of the new ids is kept
+            ID_UPDATER.compareAndSet(this, -1, nextId());
         }
         return mId;
     }
 
+    private static int nextId() {
+        int[] block = sIdBlock.get();
+        if (block[0] == block[1]) {
+            block[0] = sNextIdBlock.getAndAdd(ID_BLOCK_SIZE);
+            block[1] = block[0] + ID_BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+
     /**
      * Controlled by CommandDirector, DO NOT use this function
      *
@@ -63,11 +112,75 @@ public abstract class Command {
         return mParentId;
     }
 
+    /**
+     * Controlled by CommandDirector, DO NOT use this function
+     *
+     * @param timer the timer of the worker thread, null if the Command is not started by CommandDirector
+     */
+    public void setTimer(CoalescingTimer timer) {
+        mTimer = timer;
+    }
+
     public Command setListener(OnCommandUpdateListener listener) {
         mOnCommandUpdateListener = listener;
         return this;
     }
 
+    /**
+     * Controlled by CommandDirector, DO NOT use this function
+     *
+     * @param listener the listener of reportProgress()
+     * @return this Command
+     */
+    public Command setProgressListener(OnCommandProgressListener listener) {
+        mOnCommandProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * Report the progress of this Command, it can be called as often as needed from any thread, CommandDirector
+     * delivers only the latest progress of each display frame
+     *
+     * @param progress the progress, e.g. from 0 to 1
+     * @param bundle   the extra data of the progress, can be null
+     */
+    protected void reportProgress(float progress, Bundle bundle) {
+        OnCommandProgressListener listener = mOnCommandProgressListener;
+        if (listener != null) {
+            listener.onProgress(this, progress, bundle);
+        }
+    }
+
+    /**
+     * Set the dispatch priority of this Command
+     *
+     * @param priority the priority, null means using the priority of the run
+     * @return this Command
+     */
+    public Command setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * Get the dispatch priority of this Command
+     *
+     * @return the priority, null means using the priority of the run
+     */
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * A synchronous Command always completes or fails inside start(), CommandDirector handles the completions of
+     * consecutive synchronous Commands in one dispatch
+     *
+     * @return is synchronous or not
+     */
+    public boolean isSynchronous() {
+        return false;
+    }
+
     /**
      * Get the Command is processing or not
      *
@@ -161,26 +274,69 @@ public abstract class Command {
      */
     public Command setNext(Command nextCommand) {
         mNextCommand = nextCommand;
+        mNextSupplier = null;
         return mNextCommand;
     }
 
     /**
-     * Get the next Command
+     * Set the next Command lazily, the supplier is called when this Command completed, and the created Commands are
+     * released by CommandDirector once the run moves on
+     *
+     * @param nextSupplier the supplier of the next Command
+     * @return this Command
+     */
+    public Command setNextSupplier(CommandSupplier nextSupplier) {
+        mNextCommand = null;
+        mNextSupplier = nextSupplier;
+        return this;
+    }
+
+    /**
+     * Get the next Command, create it if it's set by CommandSupplier
      *
      * @return the next Command, null means there is no next, CommandDirector calls onComplete
      */
     public Command getNext() {
+        if (mNextCommand == null && mNextSupplier != null) {
+            mNextCommand = mNextSupplier.get();
+        }
         return mNextCommand;
     }
 
-
     /**
      * Has next Command or not
      *
      * @return has next Command or not
      */
     public boolean hasNext() {
-        return mNextCommand != null;
+        return mNextCommand != null || mNextSupplier != null;
+    }
+
+    /**
+     * Controlled by CommandDirector, drop the next Command created by CommandSupplier
+     */
+    public void releaseNext() {
+        if (mNextSupplier != null) {
+            mNextCommand = null;
+        }
+    }
+
+    /**
+     * Controlled by CommandDirector, write the state this Command needs to continue after a restore
+     *
+     * @param out the snapshot output
+     * @throws IOException if the state can not be written
+     */
+    public void saveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Controlled by CommandDirector, read the state written by saveState(), it is called before start()
+     *
+     * @param in the snapshot input
+     * @throws IOException if the state can not be read
+     */
+    public void restoreState(DataInput in) throws IOException {
     }
 
     protected void onComplete(Bundle bundle) {
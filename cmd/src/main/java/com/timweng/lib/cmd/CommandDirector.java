@@ -5,13 +5,32 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
 
+import com.timweng.lib.cmd.unit.ControlCommand;
 import com.timweng.lib.cmd.unit.SpawnCommand;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The CommandDirector is for handling Commands, user must control Commands by this player.
@@ -19,6 +38,11 @@ import java.util.Vector;
 public class CommandDirector {
     private static final String TAG = "CommandDirector";
 
+    /**
+     * Set in the error bundle sent to the listeners of a pending run which is dropped from the admission queue
+     */
+    public static final String KEY_DROPPED = "CommandDirector.dropped";
+
     /**
      * The callback that can get the Commands playing update
      */
@@ -50,27 +74,185 @@ public class CommandDirector {
         public void onError(Command lastCommand, Command nextCommand, Bundle errorBundle);
     }
 
+    /**
+     * The callback that can get the progress of the Commands, see Command.reportProgress()
+     */
+    public static interface OnProgressListener {
+        /**
+         * Call on the main thread at most once per Command per display frame (or per setProgressInterval()), with the
+         * latest progress the Command reported
+         *
+         * @param command  the Command reporting the progress
+         * @param progress the progress
+         * @param bundle   the extra data of the progress, can be null
+         */
+        public void onProgress(Command command, float progress, Bundle bundle);
+    }
+
+    /**
+     * What start() does when the CommandDirector is processing and the pending queue is full
+     */
+    public static enum AdmissionPolicy {
+        /**
+         * start() returns false
+         */
+        REJECT,
+        /**
+         * The oldest pending run is dropped
+         */
+        DROP_OLDEST,
+        /**
+         * A pending run with the same key is replaced by the new one, Command and priority both, start() returns
+         * false if there is none
+         */
+        COALESCE_BY_KEY,
+        /**
+         * start() waits for a free slot until the admission timeout, it never waits on the main thread
+         */
+        BLOCK_WITH_TIMEOUT
+    }
+
+    /**
+     * The statistics of the pending queue, the times are in milliseconds
+     */
+    public static class AdmissionStats {
+        public final int startedCount;
+        public final long totalWaitTime;
+        public final long maxWaitTime;
+        public final int rejectedCount;
+        public final int droppedCount;
+        public final int coalescedCount;
+
+        AdmissionStats(int startedCount, long totalWaitTime, long maxWaitTime, int rejectedCount, int droppedCount,
+                       int coalescedCount) {
+            this.startedCount = startedCount;
+            this.totalWaitTime = totalWaitTime;
+            this.maxWaitTime = maxWaitTime;
+            this.rejectedCount = rejectedCount;
+            this.droppedCount = droppedCount;
+            this.coalescedCount = coalescedCount;
+        }
+
+        public long getAverageWaitTime() {
+            return startedCount == 0 ? 0 : totalWaitTime / startedCount;
+        }
+    }
+
+    private static class PendingRun {
+        Command mCommand;
+        Command.Priority mPriority;
+        final String mKey;
+        // Created by startShared(), a plain start() of the same key makes it an owned run
+        boolean mIsShared;
+        final long mEnqueueTime;
+        final CopyOnWriteArrayList<OnDirectorUpdateListener> mListeners =
+                new CopyOnWriteArrayList<OnDirectorUpdateListener>();
+
+        PendingRun(Command command, Command.Priority priority, String key, boolean isShared) {
+            mCommand = command;
+            mPriority = priority;
+            mKey = key;
+            mIsShared = isShared;
+            mEnqueueTime = SystemClock.uptimeMillis();
+        }
+    }
+
     protected volatile boolean mIsProcessing = false;
     protected volatile boolean mIsPause = false;
+    // The uptime of the last pause(), the start times of the paused Commands move over the paused time on resume()
+    private long mPauseTime = 0;
 
     private Handler mMainHandler;
+    // The looper handling the completions, see CommandDirector(String, boolean)
+    private Looper mDispatchLooper;
     private HandlerThread mThread;
     private Handler mHandler;
+    private CommandDispatcher mDispatcher;
+    private volatile Command.Priority mRunPriority = Command.Priority.NORMAL;
+
+    // Every run splits its own generator from mRandom, see setRandomSeed()
+    private SplitRandom mRandom = new SplitRandom(System.nanoTime() ^ System.identityHashCode(this));
+    private SplitRandom mRunRandom = mRandom.split();
 
     private Vector<Command> mCurCommandVector = new Vector<Command>();
-    private Map<Integer, SpawnCommand.SpawnData> mSpawnMap = new HashMap<Integer, SpawnCommand.SpawnData>();
+    private IntMap<SpawnCommand.SpawnData> mSpawnMap = new IntMap<SpawnCommand.SpawnData>();
 
     private HashSet<OnDirectorUpdateListener> mListenerSet = new HashSet<OnDirectorUpdateListener>();
+    private HashSet<OnProgressListener> mProgressListenerSet = new HashSet<OnProgressListener>();
+    private CopyOnWriteArrayList<DirectorPublisher> mPublishers = new CopyOnWriteArrayList<DirectorPublisher>();
     private Map<Command, Bundle> mStartBundleMap = new HashMap<>();
 
+    private CommandSnapshot mSnapshot = null;
+    private CommandSnapshot.GraphIndex mGraphIndex = null;
+    private Command mRootCommand = null;
+    private Map<Command, Bundle> mRunBundleMap = new HashMap<>();
+    // The Parcel bytes of the start bundles in the last snapshot, a bundle is marshalled once while its Command runs,
+    // the bundle given to a Command is not expected to change
+    private IdentityHashMap<Bundle, byte[]> mBundleBytesMap = new IdentityHashMap<Bundle, byte[]>();
+
+    private ArrayDeque<PendingRun> mPendingRuns = new ArrayDeque<PendingRun>();
+    private int mPendingCapacity = 0;
+    private AdmissionPolicy mAdmissionPolicy = AdmissionPolicy.REJECT;
+    private long mAdmissionTimeout = 0;
+    private int mStartedPendingCount = 0;
+    private long mTotalWaitTime = 0;
+    private long mMaxWaitTime = 0;
+    private int mRejectedCount = 0;
+    private int mDroppedCount = 0;
+    private int mCoalescedCount = 0;
+
+    // Changed every time a run starts or stops, the completions posted by an older run are dropped
+    private volatile int mRunSerial = 0;
+
+    // The key and the attached listeners of the current run, see startShared()
+    private String mRunKey = null;
+    // Only the runs created by startShared() stop when the last listener is detached
+    private boolean mIsRunShared = false;
+    private volatile CopyOnWriteArrayList<OnDirectorUpdateListener> mRunListeners =
+            new CopyOnWriteArrayList<OnDirectorUpdateListener>();
+
+    // Completions and listener updates of synchronous Commands, handled in the dispatch that started them
+    private static final int MAX_FUSED_COUNT = 256;
+    private static final int MAX_CONTROL_HOP_COUNT = 1024;
+    private boolean mIsFusing = false;
+    private ArrayDeque<OnDoneRunnable> mFusedDoneQueue = new ArrayDeque<OnDoneRunnable>();
+    private List<Runnable> mFusedUpdateList = new ArrayList<Runnable>();
+
+    // The Commands to start once mControlLock is released, Command.start() runs the code of the user (e.g.
+    // FunctionCommand.function()) and stop() or pause() of other threads must not wait for it
+    private List<StartTask> mStartList = new ArrayList<StartTask>();
+
+    // Spawn children and resumed Commands start longest expected first, see setCriticalPathFirst()
+    private LatencyTracker mLatencyTracker = new LatencyTracker();
+    private CoalescingTimer mTimer;
+    private volatile boolean mIsCriticalPathFirst = true;
+
+    // The latest progress of every Command since the last delivery, see setProgressInterval()
+    private LinkedHashMap<Command, Progress> mProgressMap = new LinkedHashMap<Command, Progress>();
+    private boolean mIsProgressScheduled = false;
+    private volatile long mProgressInterval = 0;
+
     private final Object mControlLock = new Object();
 
     public CommandDirector() {
+        this("BehaviorManager.mThread", false);
+    }
+
+    /**
+     * @param threadName         the name of the worker thread
+     * @param isDispatchOnWorker handle the completions on the worker thread instead of the main thread, so the
+     *                           CommandDirectors of ShardedCommandDirector don't share one thread, the listeners are
+     *                           still called on the main thread
+     */
+    CommandDirector(String threadName, boolean isDispatchOnWorker) {
         synchronized (mControlLock) {
             mMainHandler = new Handler(Looper.getMainLooper());
-            mThread = new HandlerThread("BehaviorManager.mThread");
+            mThread = new HandlerThread(threadName);
             mThread.start();
             mHandler = new Handler(mThread.getLooper());
+            mDispatchLooper = isDispatchOnWorker ? mThread.getLooper() : Looper.getMainLooper();
+            mDispatcher = new CommandDispatcher(isDispatchOnWorker ? mHandler : mMainHandler);
+            mTimer = new CoalescingTimer(mHandler);
         }
     }
 
@@ -80,9 +262,49 @@ public class CommandDirector {
     public void release() {
         synchronized (mControlLock) {
             stopAllCurCommands();
+            mPendingRuns.clear();
+            mControlLock.notifyAll();
             mThread.quit();
+            mTimer.clear();
+            mDispatcher.clear();
             mMainHandler = null;
             mListenerSet.clear();
+            synchronized (mProgressListenerSet) {
+                mProgressListenerSet.clear();
+            }
+            for (DirectorPublisher publisher : mPublishers) {
+                publisher.close();
+            }
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+    }
+
+    /**
+     * Keep a snapshot of the running Commands in the file, it is updated every time the Commands advance, so the run
+     * can be continued by restore() after the process is restarted.
+     *
+     * @param file the snapshot file, null to stop keeping the snapshot
+     * @return true if the file can be used
+     */
+    public boolean setSnapshotFile(File file) {
+        synchronized (mControlLock) {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+            if (file == null) {
+                return true;
+            }
+            try {
+                mSnapshot = new CommandSnapshot(file);
+            } catch (IOException e) {
+                Debug.logE(TAG, "setSnapshotFile() failed: " + file, e);
+                return false;
+            }
+            return true;
         }
     }
 
@@ -114,6 +336,69 @@ public class CommandDirector {
         return isOk;
     }
 
+    /**
+     * Register the OnProgressListener
+     *
+     * @param listener the listener user want to register
+     * @return true if this set did not already contain the specified element
+     */
+    public boolean registerProgressListener(OnProgressListener listener) {
+        synchronized (mProgressListenerSet) {
+            return mProgressListenerSet.add(listener);
+        }
+    }
+
+    /**
+     * Unregister the OnProgressListener
+     *
+     * @param listener the listener user want to unregister
+     * @return true if this set contained the specified element
+     */
+    public boolean unregisterProgressListener(OnProgressListener listener) {
+        synchronized (mProgressListenerSet) {
+            return mProgressListenerSet.remove(listener);
+        }
+    }
+
+    /**
+     * Set how often the progress is delivered to OnProgressListener, the progresses reported in between are
+     * conflated to the latest one of each Command
+     *
+     * @param intervalMillis the interval in milliseconds, 0 means once per display frame (default)
+     */
+    public void setProgressInterval(long intervalMillis) {
+        mProgressInterval = Math.max(0, intervalMillis);
+    }
+
+    /**
+     * Create a publisher of the updates, unlike OnDirectorUpdateListener the updates are delivered only as many as
+     * the Subscriber requests, and no more than bufferSize updates wait for each Subscriber. They are delivered on the
+     * main thread, or by the Executor given to DirectorPublisher.subscribe()
+     *
+     * @param bufferSize the max count of updates waiting for each Subscriber
+     * @param policy     what to do with a new update when the buffer of a Subscriber is full
+     * @return the publisher, close() it when no longer using it
+     */
+    public DirectorPublisher publish(int bufferSize, DirectorPublisher.OverflowPolicy policy) {
+        DirectorPublisher publisher = new DirectorPublisher(this, bufferSize, policy);
+        mPublishers.add(publisher);
+        return publisher;
+    }
+
+    void removePublisher(DirectorPublisher publisher) {
+        mPublishers.remove(publisher);
+    }
+
+    private void publish(DirectorEvent.Type type, Command last, Command next, Bundle bundle) {
+        if (mPublishers.isEmpty()) {
+            return;
+        }
+        DirectorEvent event = new DirectorEvent(type, last, next, bundle, mRunKey);
+        for (DirectorPublisher publisher : mPublishers) {
+            publisher.publish(event);
+        }
+    }
+
     /**
      * Get the player is processing commands or not
      *
@@ -123,44 +408,711 @@ public class CommandDirector {
         return mIsProcessing;
     }
 
+    /**
+     * Seed the generator of the CommandDirector, the runs started after it select the same random branches every time
+     * they are started in the same order
+     *
+     * @param seed the seed
+     */
+    public void setRandomSeed(long seed) {
+        synchronized (mControlLock) {
+            mRandom = new SplitRandom(seed);
+        }
+    }
+
+    /**
+     * Get the count of Command completions waiting to be handled in a priority lane
+     *
+     * @param priority the lane
+     * @return the count of waiting completions
+     */
+    public int getQueueDepth(Command.Priority priority) {
+        return mDispatcher.getQueueDepth(priority);
+    }
+
+    /**
+     * Set how long a completion waits before it is handled as one priority higher, so the lower lanes don't starve
+     *
+     * @param agingMillis the aging period in milliseconds
+     */
+    public void setPriorityAging(long agingMillis) {
+        mDispatcher.setAgingMillis(agingMillis);
+    }
+
+    /**
+     * Start the children of an ALL_DONE SpawnCommand, and the Commands waiting for resume(), in the order of their
+     * expected latency, longest first. The expectations are learned from the latencies of every Command class, so the
+     * slowest branch gets a head start and the spawn is done earlier. It's enabled by default.
+     *
+     * @param isCriticalPathFirst order by expected latency or keep the declaration order
+     */
+    public void setCriticalPathFirst(boolean isCriticalPathFirst) {
+        mIsCriticalPathFirst = isCriticalPathFirst;
+    }
+
+    /**
+     * Set how fast the expected latencies follow the new measurements
+     *
+     * @param alpha the weight of a new latency, between 0 and 1, 0.2 by default
+     */
+    public void setLatencyAlpha(double alpha) {
+        mLatencyTracker.setAlpha(alpha);
+    }
+
+    /**
+     * Get the expected latency of a Command class
+     *
+     * @param type the Command class
+     * @return the expected latency in milliseconds, 0 if the class was never completed
+     */
+    public double getExpectedLatency(Class<? extends Command> type) {
+        return mLatencyTracker.estimate(type);
+    }
+
+    /**
+     * Get the count of times the timer of the worker thread woke up, the delays with tolerance (e.g.
+     * DelayCommand.setTolerance()) share the wake-ups
+     *
+     * @return the wake-up count
+     */
+    public long getTimerWakeUpCount() {
+        return mTimer.getWakeUpCount();
+    }
+
+    /**
+     * Get the count of delayed Runnables the timer of the worker thread ran
+     *
+     * @return the run count
+     */
+    public long getTimerRunCount() {
+        return mTimer.getRunCount();
+    }
+
+    /**
+     * Keep the runs started while the CommandDirector is processing, they start one by one after the current run
+     *
+     * @param capacity the max count of pending runs, 0 means start() returns false while processing
+     * @param policy   what start() does when the pending queue is full
+     */
+    public void setAdmissionQueue(int capacity, AdmissionPolicy policy) {
+        synchronized (mControlLock) {
+            mPendingCapacity = capacity > 0 ? capacity : 0;
+            mAdmissionPolicy = policy == null ? AdmissionPolicy.REJECT : policy;
+            while (mPendingRuns.size() > mPendingCapacity) {
+                dropPendingLocked(mPendingRuns.pollLast());
+            }
+            mControlLock.notifyAll();
+        }
+    }
+
+    /**
+     * Set how long start() waits for a free slot with AdmissionPolicy.BLOCK_WITH_TIMEOUT
+     *
+     * @param timeoutMillis the timeout in milliseconds
+     */
+    public void setAdmissionTimeout(long timeoutMillis) {
+        synchronized (mControlLock) {
+            mAdmissionTimeout = timeoutMillis > 0 ? timeoutMillis : 0;
+        }
+    }
+
+    /**
+     * Get the count of runs waiting in the pending queue
+     *
+     * @return the count of pending runs
+     */
+    public int getPendingCount() {
+        synchronized (mControlLock) {
+            return mPendingRuns.size();
+        }
+    }
+
+    public AdmissionStats getAdmissionStats() {
+        synchronized (mControlLock) {
+            return new AdmissionStats(mStartedPendingCount, mTotalWaitTime, mMaxWaitTime, mRejectedCount,
+                    mDroppedCount, mCoalescedCount);
+        }
+    }
+
     /**
      * Start the Command
      *
      * @param command the Command you want start
-     * @return true if the Command can start, if player is processing return false
+     * @return true if the Command can start or is queued, false if player is processing and it can not be queued
      */
     public boolean start(Command command) {
+        return start(command, Command.Priority.NORMAL, null);
+    }
+
+    /**
+     * Start the Command with a priority
+     *
+     * @param command  the Command you want start
+     * @param priority the priority of the Commands which have no priority set
+     * @return true if the Command can start or is queued, false if player is processing and it can not be queued
+     */
+    public boolean start(Command command, Command.Priority priority) {
+        return start(command, priority, null);
+    }
+
+    /**
+     * Start the Command with a key, with AdmissionPolicy.COALESCE_BY_KEY a pending run of the same key is replaced
+     *
+     * @param command the Command you want start
+     * @param key     the key of the run, can be null
+     * @return true if the Command can start or is queued, false if player is processing and it can not be queued
+     */
+    public boolean start(Command command, String key) {
+        return start(command, Command.Priority.NORMAL, key);
+    }
+
+    /**
+     * Start the Command with a priority and a key
+     *
+     * @param command  the Command you want start
+     * @param priority the priority of the Commands which have no priority set
+     * @param key      the key of the run, can be null
+     * @return true if the Command can start or is queued, false if player is processing and it can not be queued
+     */
+    public boolean start(Command command, Command.Priority priority, String key) {
+        boolean isOk;
+        List<StartTask> starts;
+        synchronized (mControlLock) {
+            isOk = admitLocked(command, priority, key, null);
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    /**
+     * Start a shared run, if a run of the same key is processing or pending, the listener is attached to that run
+     * instead of starting the Command again. Every attached listener gets the updates of the run, and a run created
+     * here is stopped when the last attached listener is detached. A run of start(command, key) belongs to its
+     * caller, the listeners attached to it never stop it.
+     *
+     * @param key      the key of the run, runs of the same key must do the same work
+     * @param command  the Command you want start if there is no run of the key
+     * @param listener the listener attached to the run
+     * @return true if the listener is attached to a processing, pending or new run
+     */
+    public boolean startShared(String key, Command command, OnDirectorUpdateListener listener) {
+        if (key == null || listener == null) {
+            throw new IllegalArgumentException("key and listener can not be null");
+        }
+        boolean isOk;
+        List<StartTask> starts;
         synchronized (mControlLock) {
-            if (mIsProcessing) {
-                Debug.logD(TAG, "start() failed: mIsProcessing = " + mIsProcessing);
+            if (mIsProcessing && key.equals(mRunKey)) {
+                mRunListeners.addIfAbsent(listener);
+                Debug.logD(TAG, "startShared() attached to the processing run: " + key);
+                return true;
+            }
+            for (PendingRun run : mPendingRuns) {
+                if (key.equals(run.mKey)) {
+                    run.mListeners.addIfAbsent(listener);
+                    Debug.logD(TAG, "startShared() attached to a pending run: " + key);
+                    return true;
+                }
+            }
+            isOk = admitLocked(command, Command.Priority.NORMAL, key, listener);
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    /**
+     * Detach the listener from the shared run of the key, the run created by startShared() is stopped if no listener
+     * is attached to it
+     *
+     * @param key      the key of the run
+     * @param listener the listener attached by startShared()
+     * @return true if the listener was attached to the run
+     */
+    public boolean detach(String key, OnDirectorUpdateListener listener) {
+        List<StartTask> starts;
+        synchronized (mControlLock) {
+            if (key == null) {
                 return false;
             }
-            mIsProcessing = true;
-            mIsPause = false;
-            mStartBundleMap.clear();
-            return startNext(command, null);
+            if (mIsProcessing && key.equals(mRunKey)) {
+                if (!mRunListeners.remove(listener)) {
+                    return false;
+                }
+                if (mRunListeners.isEmpty() && mIsRunShared) {
+                    Debug.logD(TAG, "detach() the last listener, stop the run: " + key);
+                    stopLocked();
+                }
+                starts = takeStartsLocked();
+            } else {
+                return detachPendingLocked(key, listener);
+            }
+        }
+        runStarts(starts);
+        return true;
+    }
+
+    private boolean detachPendingLocked(String key, OnDirectorUpdateListener listener) {
+        Iterator<PendingRun> iterator = mPendingRuns.iterator();
+        while (iterator.hasNext()) {
+            PendingRun run = iterator.next();
+            if (key.equals(run.mKey)) {
+                if (!run.mListeners.remove(listener)) {
+                    return false;
+                }
+                if (run.mListeners.isEmpty() && run.mIsShared) {
+                    iterator.remove();
+                    mControlLock.notifyAll();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean admitLocked(Command command, Command.Priority priority, String key,
+                                OnDirectorUpdateListener listener) {
+        if (!mIsProcessing) {
+            return startLocked(command, priority, key, listener);
+        }
+        if (mPendingCapacity == 0) {
+            Debug.logD(TAG, "start() failed: mIsProcessing = " + mIsProcessing);
+            return false;
+        }
+
+        if (mAdmissionPolicy == AdmissionPolicy.COALESCE_BY_KEY && key != null) {
+            for (PendingRun run : mPendingRuns) {
+                if (key.equals(run.mKey)) {
+                    run.mCommand = command;
+                    run.mPriority = priority;
+                    if (listener != null) {
+                        run.mListeners.addIfAbsent(listener);
+                    } else {
+                        run.mIsShared = false;
+                    }
+                    mCoalescedCount++;
+                    return true;
+                }
+            }
+        }
+        if (mPendingRuns.size() >= mPendingCapacity) {
+            switch (mAdmissionPolicy) {
+                case DROP_OLDEST:
+                    dropPendingLocked(mPendingRuns.pollFirst());
+                    break;
+                case BLOCK_WITH_TIMEOUT:
+                    if (!waitForSlotLocked()) {
+                        mRejectedCount++;
+                        Debug.logD(TAG, "start() failed: pending queue is full");
+                        return false;
+                    }
+                    if (!mIsProcessing) {
+                        return startLocked(command, priority, key, listener);
+                    }
+                    break;
+                default:
+                    mRejectedCount++;
+                    Debug.logD(TAG, "start() failed: pending queue is full");
+                    return false;
+            }
+        }
+        PendingRun run = new PendingRun(command, priority, key, listener != null);
+        if (listener != null) {
+            run.mListeners.add(listener);
+        }
+        mPendingRuns.addLast(run);
+        return true;
+    }
+
+    private boolean waitForSlotLocked() {
+        Looper looper = Looper.myLooper();
+        if (looper == Looper.getMainLooper() || looper == mDispatchLooper) {
+            // The current run may complete on this thread, waiting here would never get a slot
+            Debug.logD(TAG, "start() can not wait on the main or dispatch thread");
+            return false;
+        }
+        long deadline = SystemClock.uptimeMillis() + mAdmissionTimeout;
+        while (mIsProcessing && mPendingRuns.size() >= mPendingCapacity) {
+            long remain = deadline - SystemClock.uptimeMillis();
+            if (remain <= 0 || mPendingCapacity == 0) {
+                return false;
+            }
+            try {
+                mControlLock.wait(remain);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startLocked(Command command, Command.Priority priority, String key,
+                                OnDirectorUpdateListener listener) {
+        CopyOnWriteArrayList<OnDirectorUpdateListener> listeners = new CopyOnWriteArrayList<OnDirectorUpdateListener>();
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        return startLocked(command, priority, key, listeners, listener != null);
+    }
+
+    private boolean startLocked(Command command, Command.Priority priority, String key,
+                                CopyOnWriteArrayList<OnDirectorUpdateListener> listeners, boolean isShared) {
+        mRunKey = key;
+        mIsRunShared = isShared;
+        mRunListeners = listeners;
+        mRunRandom = mRandom.split();
+        mRunPriority = priority == null ? Command.Priority.NORMAL : priority;
+        mRunSerial++;
+        mIsProcessing = true;
+        mIsPause = false;
+        mStartBundleMap.clear();
+        mRunBundleMap.clear();
+        mRootCommand = command;
+        mGraphIndex = null;
+        if (!startNext(command, null) && mCurCommandVector.isEmpty()) {
+            // The root resolved to no Command, e.g. an IfCommand without the matching branch, the run is done
+            Debug.logD(TAG, "start() nothing to play: " + command);
+            mIsProcessing = false;
+            mRootCommand = null;
+            onComplete(null, null);
+            writeSnapshot();
+            startPendingLocked();
+            return true;
+        }
+        writeSnapshot();
+        return true;
+    }
+
+    /**
+     * Count the dropped pending run and send onError() with KEY_DROPPED to the listeners attached to it
+     */
+    private void dropPendingLocked(PendingRun run) {
+        mDroppedCount++;
+        final Object[] list = run.mListeners.toArray();
+        if (list.length == 0 || mMainHandler == null) {
+            return;
+        }
+        Debug.logD(TAG, "dropPending() key = " + run.mKey);
+        final Command command = run.mCommand;
+        final Bundle errorBundle = new Bundle();
+        errorBundle.putBoolean(KEY_DROPPED, true);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Object listener : list) {
+                    ((OnDirectorUpdateListener) listener).onError(command, null, errorBundle);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start the oldest pending run if the CommandDirector is free
+     */
+    private void startPendingLocked() {
+        while (!mIsProcessing && !mPendingRuns.isEmpty()) {
+            PendingRun run = mPendingRuns.pollFirst();
+            mControlLock.notifyAll();
+            long waitTime = SystemClock.uptimeMillis() - run.mEnqueueTime;
+            mStartedPendingCount++;
+            mTotalWaitTime += waitTime;
+            if (waitTime > mMaxWaitTime) {
+                mMaxWaitTime = waitTime;
+            }
+            Debug.logD(TAG, "startPending() waitTime = " + waitTime);
+            startLocked(run.mCommand, run.mPriority, run.mKey, run.mListeners, run.mIsShared);
+        }
+    }
+
+    /**
+     * Continue the run kept in the snapshot file, the Commands which were running start again from where they were,
+     * the completed Commands are not played again.
+     *
+     * @param command the first Command of the run, it must be built the same way as the one given to start()
+     * @return true if the run can continue, false if player is processing or there is no snapshot of this graph
+     */
+    public boolean restore(Command command) {
+        boolean isOk;
+        List<StartTask> starts;
+        synchronized (mControlLock) {
+            isOk = restoreLocked(command);
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    private boolean restoreLocked(Command command) {
+        if (mIsProcessing) {
+            Debug.logD(TAG, "restore() failed: mIsProcessing = " + mIsProcessing);
+            return false;
+        }
+        if (mSnapshot == null || command == null) {
+            Debug.logD(TAG, "restore() failed: no snapshot");
+            return false;
+        }
+        byte[] body = mSnapshot.read();
+        if (body == null) {
+            Debug.logD(TAG, "restore() failed: snapshot is empty");
+            return false;
+        }
+
+        CommandSnapshot.GraphIndex index = new CommandSnapshot.GraphIndex(command);
+        Command[] curCommands;
+        Bundle[] curBundles;
+        byte[][] curStates;
+        SpawnCommand.SpawnData[] spawnDatas;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            if (in.readInt() != index.size()) {
+                Debug.logD(TAG, "restore() failed: the graph is changed");
+                return false;
+            }
+            int curCount = in.readInt();
+            curCommands = new Command[curCount];
+            curBundles = new Bundle[curCount];
+            curStates = new byte[curCount][];
+            for (int i = 0; i < curCount; i++) {
+                curCommands[i] = readCommand(in, index);
+                curBundles[i] = CommandSnapshot.readBundle(in);
+                curStates[i] = new byte[in.readInt()];
+                in.readFully(curStates[i]);
+            }
+            int spawnCount = in.readInt();
+            spawnDatas = new SpawnCommand.SpawnData[spawnCount];
+            for (int i = 0; i < spawnCount; i++) {
+                Command spawn = readCommand(in, index);
+                if (!(spawn instanceof SpawnCommand)) {
+                    throw new IOException("not a SpawnCommand: " + spawn);
+                }
+                Command[] children = new Command[in.readInt()];
+                for (int j = 0; j < children.length; j++) {
+                    children[j] = readCommand(in, index);
+                }
+                spawnDatas[i] = new SpawnCommand.SpawnData((SpawnCommand) spawn, children);
+            }
+        } catch (IOException e) {
+            Debug.logE(TAG, "restore() failed", e);
+            return false;
+        }
+
+        mRunSerial++;
+        mRunRandom = mRandom.split();
+        mRunKey = null;
+        mIsRunShared = false;
+        mRunPriority = Command.Priority.NORMAL;
+        mRunListeners = new CopyOnWriteArrayList<OnDirectorUpdateListener>();
+        mIsProcessing = true;
+        mIsPause = false;
+        mStartBundleMap.clear();
+        mRunBundleMap.clear();
+        mRootCommand = command;
+        mGraphIndex = index;
+        synchronized (mSpawnMap) {
+            for (SpawnCommand.SpawnData spawnData : spawnDatas) {
+                mSpawnMap.put(spawnData.getCommand().getId(), spawnData);
+            }
+        }
+        for (int i = 0; i < curCommands.length; i++) {
+            Command cmd = curCommands[i];
+            mCurCommandVector.add(cmd);
+            cmd.setListener(mOnCommandUpdateListener);
+            if (cmd instanceof SpawnCommand) {
+                if (!mSpawnMap.containsKey(cmd.getId())) {
+                    // The children were done, only the completion of the SpawnCommand itself was pending
+                    postDone(cmd, curBundles[i], false);
+                }
+                continue;
+            }
+            mRunBundleMap.put(cmd, curBundles[i]);
+            try {
+                cmd.restoreState(new DataInputStream(new ByteArrayInputStream(curStates[i])));
+            } catch (IOException e) {
+                Debug.logE(TAG, "restore() state failed: " + cmd, e);
+            }
+            startCommand(cmd, curBundles[i]);
+        }
+        Debug.logD(TAG, "restore() successful, mCurCommandVector.size() = " + mCurCommandVector.size());
+        writeSnapshot();
+        return true;
+    }
+
+    private static Command readCommand(DataInputStream in, CommandSnapshot.GraphIndex index) throws IOException {
+        int position = in.readInt();
+        Command command = index.get(position);
+        if (command == null) {
+            throw new IOException("unknown Command position: " + position);
+        }
+        return command;
+    }
+
+    /**
+     * Write the running Commands, their start bundles, their own states and the progress of every SpawnCommand
+     */
+    private void writeSnapshot() {
+        synchronized (mControlLock) {
+            writeSnapshotLocked();
+        }
+    }
+
+    private void writeSnapshotLocked() {
+        CommandSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return;
+        }
+        if (!mIsProcessing || mRootCommand == null) {
+            snapshot.clear();
+            mBundleBytesMap.clear();
+            return;
+        }
+        if (mGraphIndex == null) {
+            mGraphIndex = new CommandSnapshot.GraphIndex(mRootCommand);
         }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(mGraphIndex.size());
+
+            Command[] curCommands = mCurCommandVector.toArray(new Command[0]);
+            out.writeInt(curCommands.length);
+            ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+            IdentityHashMap<Bundle, byte[]> bundleBytesMap = new IdentityHashMap<Bundle, byte[]>();
+            for (Command cmd : curCommands) {
+                writeCommand(out, cmd);
+                Bundle bundle = mStartBundleMap.containsKey(cmd)
+                        ? mStartBundleMap.get(cmd) : mRunBundleMap.get(cmd);
+                if (bundle == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] data = mBundleBytesMap.get(bundle);
+                    if (data == null) {
+                        data = CommandSnapshot.marshall(bundle);
+                    }
+                    bundleBytesMap.put(bundle, data);
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+                stateBytes.reset();
+                cmd.saveState(new DataOutputStream(stateBytes));
+                out.writeInt(stateBytes.size());
+                stateBytes.writeTo(out);
+            }
+
+            synchronized (mSpawnMap) {
+                out.writeInt(mSpawnMap.size());
+                for (SpawnCommand.SpawnData spawnData : mSpawnMap.values()) {
+                    writeCommand(out, spawnData.getCommand());
+                    Command[] children = spawnData.genChildrenArray();
+                    out.writeInt(children.length);
+                    for (Command child : children) {
+                        writeCommand(out, child);
+                    }
+                }
+            }
+            out.flush();
+            mBundleBytesMap = bundleBytesMap;
+            snapshot.write(bytes.toByteArray());
+        } catch (IOException e) {
+            Debug.logE(TAG, "writeSnapshot() failed", e);
+        }
+    }
+
+    private void writeCommand(DataOutputStream out, Command command) throws IOException {
+        int position = mGraphIndex.indexOf(command);
+        if (position < 0) {
+            throw new IOException("Command is not in the graph: " + command);
+        }
+        out.writeInt(position);
     }
 
     /**
-     * Stop the CommandDirector
+     * Stop the current run of the CommandDirector, the next pending run starts if there is one
      *
      * @return true if the CommandDirector can stop, if player is not processing return false
      */
     public boolean stop() {
+        boolean isOk;
+        List<StartTask> starts;
         synchronized (mControlLock) {
-            if (!mIsProcessing) {
-                Debug.logD(TAG, "stop() failed: mIsProcessing = " + mIsProcessing);
+            isOk = stopLocked();
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    private boolean stopLocked() {
+        if (!mIsProcessing) {
+            Debug.logD(TAG, "stop() failed: mIsProcessing = " + mIsProcessing);
+            return false;
+        }
+        Debug.logD(TAG, "stop() successful, mCurCommandVector.size() = "
+                + mCurCommandVector.size());
+        stopAllCurCommands();
+        mRunSerial++;
+        mIsProcessing = false;
+        mIsPause = false;
+        mStartBundleMap.clear();
+        writeSnapshot();
+        startPendingLocked();
+        return true;
+    }
+
+    /**
+     * Stop the current run only if it is the run of the key, see start(Command, String)
+     *
+     * @param key the key of the run
+     * @return true if the run of the key is stopped, false if the processing run is not of the key
+     */
+    public boolean stop(String key) {
+        List<StartTask> starts;
+        synchronized (mControlLock) {
+            if (!isRunOfLocked(key)) {
+                Debug.logD(TAG, "stop() failed: the processing run is not of " + key);
                 return false;
             }
-            Debug.logD(TAG, "stop() successful, mCurCommandVector.size() = "
-                    + mCurCommandVector.size());
-            stopAllCurCommands();
-            mIsProcessing = false;
-            mIsPause = false;
-            mStartBundleMap.clear();
-            return true;
+            stopLocked();
+            starts = takeStartsLocked();
         }
+        runStarts(starts);
+        return true;
+    }
+
+    /**
+     * Pause the current run only if it is the run of the key, see start(Command, String)
+     */
+    public boolean pause(String key) {
+        synchronized (mControlLock) {
+            if (!isRunOfLocked(key)) {
+                Debug.logD(TAG, "pause() failed: the processing run is not of " + key);
+                return false;
+            }
+            return pause();
+        }
+    }
+
+    /**
+     * Resume the current run only if it is the run of the key, see start(Command, String)
+     */
+    public boolean resume(String key) {
+        boolean isOk;
+        List<StartTask> starts;
+        synchronized (mControlLock) {
+            if (!isRunOfLocked(key)) {
+                Debug.logD(TAG, "resume() failed: the processing run is not of " + key);
+                return false;
+            }
+            isOk = resumeLocked();
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    private boolean isRunOfLocked(String key) {
+        return mIsProcessing && (key == null ? mRunKey == null : key.equals(mRunKey));
     }
 
     public boolean pause() {
@@ -177,31 +1129,52 @@ public class CommandDirector {
             }
             mIsProcessing = true;
             mIsPause = true;
+            mPauseTime = SystemClock.uptimeMillis();
+            writeSnapshot();
             return true;
         }
     }
 
     public boolean resume() {
+        boolean isOk;
+        List<StartTask> starts;
         synchronized (mControlLock) {
-            if (!mIsProcessing || !mIsPause) {
-                Debug.logD(TAG, "resume() failed");
-                return false;
-            }
-            for (int i = 0; i < mCurCommandVector.size(); i++) {
-                Command cmd = mCurCommandVector.get(i);
-                if (cmd != null) {
-                    if (cmd.isPause()) {
-                        cmd.resume();
-                    } else {
-                        cmd.start(mHandler, mStartBundleMap.get(cmd));
+            isOk = resumeLocked();
+            starts = takeStartsLocked();
+        }
+        runStarts(starts);
+        return isOk;
+    }
+
+    private boolean resumeLocked() {
+        if (!mIsProcessing || !mIsPause) {
+            Debug.logD(TAG, "resume() failed");
+            return false;
+        }
+        List<Command> resumeList = new ArrayList<Command>(mCurCommandVector);
+        if (mIsCriticalPathFirst) {
+            mLatencyTracker.sortLongestFirst(resumeList);
+        }
+        // The paused time is not the latency of the Commands, move their start times over it
+        long pausedTime = SystemClock.uptimeMillis() - mPauseTime;
+        for (Command cmd : resumeList) {
+            if (cmd != null) {
+                if (cmd.isPause()) {
+                    if (cmd.mStartTime >= 0) {
+                        cmd.mStartTime += pausedTime;
                     }
+                    cmd.resume();
+                } else if (mStartBundleMap.containsKey(cmd)) {
+                    startCommand(cmd, mStartBundleMap.get(cmd));
                 }
+                // Otherwise it is still in mStartList, it starts there now the run is not paused
             }
-            mStartBundleMap.clear();
-            mIsProcessing = true;
-            mIsPause = false;
-            return true;
         }
+        mStartBundleMap.clear();
+        mIsProcessing = true;
+        mIsPause = false;
+        writeSnapshot();
+        return true;
     }
 
     private void stopAllCurCommands() {
@@ -209,15 +1182,42 @@ public class CommandDirector {
             Command command = mCurCommandVector.get(i);
             if (command != null) {
                 command.stop();
+                command.setProgressListener(null);
             }
         }
         mCurCommandVector.clear();
+        synchronized (mProgressMap) {
+            mProgressMap.clear();
+        }
+        mRunBundleMap.clear();
         synchronized (mSpawnMap) {
             mSpawnMap.clear();
         }
     }
 
+    /**
+     * Follow the ControlCommands until a Command which can be started, no ControlCommand is started
+     *
+     * @param command the Command to continue with
+     * @param bundle  the bundle from last Command
+     * @return the Command to start, null means there is no next
+     */
+    private Command resolve(Command command, Bundle bundle) {
+        int hopCount = 0;
+        while (command instanceof ControlCommand) {
+            if (++hopCount > MAX_CONTROL_HOP_COUNT) {
+                Debug.logE(TAG, "resolve() failed: ControlCommand loop at " + command);
+                return null;
+            }
+            ControlCommand control = (ControlCommand) command;
+            Command selected = control.select(bundle, mRunRandom);
+            command = selected != null ? selected : control.getNext();
+        }
+        return command;
+    }
+
     private boolean startNext(Command command, Bundle bundle) {
+        command = resolve(command, bundle);
         if (command == null) {
             Debug.logD(TAG, "startNext() failed");
             return false;
@@ -225,13 +1225,31 @@ public class CommandDirector {
         if (command instanceof SpawnCommand) {
             mCurCommandVector.add(command);
             command.setListener(mOnCommandUpdateListener);
+            command.mStartTime = SystemClock.uptimeMillis();
 
             Command[] aArray = null;
             synchronized (mSpawnMap) {
                 SpawnCommand sa = (SpawnCommand) command;
                 SpawnCommand.SpawnData spawnData = sa.genSpawnData();
-                mSpawnMap.put(sa.getId(), spawnData);
-                aArray = spawnData.genChildrenArray();
+                Vector<Command> cVector = spawnData.getChildren();
+                for (int i = cVector.size() - 1; i >= 0; i--) {
+                    Command child = resolve(cVector.get(i), bundle);
+                    if (child == null) {
+                        cVector.remove(i);
+                    } else {
+                        child.setParentId(sa.getId());
+                        cVector.set(i, child);
+                    }
+                }
+                if (cVector.isEmpty()) {
+                    postDone(sa, bundle, false);
+                } else {
+                    mSpawnMap.put(sa.getId(), spawnData);
+                    aArray = spawnData.genChildrenArray();
+                    if (mIsCriticalPathFirst && spawnData.getCompleteType() == SpawnCommand.CompleteType.ALL_DONE) {
+                        mLatencyTracker.sortLongestFirst(aArray);
+                    }
+                }
             }
             if (aArray != null && aArray.length > 0) {
                 for (Command a : aArray) {
@@ -243,23 +1261,24 @@ public class CommandDirector {
                         if (mIsPause) {
                             mStartBundleMap.put(a, bundle);
                         } else {
-                            a.start(mHandler, bundle);
+                            startCommand(a, bundle);
                         }
                     }
                 }
-            } else {
-                startNext(command.getNext(), null);
             }
         } else {
             mCurCommandVector.add(command);
             command.setListener(mOnCommandUpdateListener);
+            if (mSnapshot != null) {
+                mRunBundleMap.put(command, bundle);
+            }
             if (!mIsProcessing) {
                 return false;
             } else if (mIsPause) {
                 mStartBundleMap.put(command, bundle);
                 return false;
             } else {
-                command.start(mHandler, bundle);
+                startCommand(command, bundle);
             }
         }
 
@@ -267,49 +1286,293 @@ public class CommandDirector {
         return true;
     }
 
+    /**
+     * Queue the Command to start after mControlLock is released, see runStarts()
+     */
+    private void startCommand(Command command, Bundle bundle) {
+        mStartList.add(new StartTask(command, bundle, mRunSerial));
+    }
+
+    private List<StartTask> takeStartsLocked() {
+        if (mStartList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<StartTask> starts = mStartList;
+        mStartList = new ArrayList<StartTask>();
+        return starts;
+    }
+
+    /**
+     * Start the Commands queued by startCommand(), called without mControlLock. A Command is skipped if its run is
+     * stopped or it is stopped by a ONE_DONE SpawnCommand meanwhile, and waits for resume() if the run is paused.
+     */
+    private void runStarts(List<StartTask> starts) {
+        for (StartTask task : starts) {
+            Command command = task.mCommand;
+            synchronized (mControlLock) {
+                if (task.mRunSerial != mRunSerial || !mCurCommandVector.contains(command)) {
+                    continue;
+                }
+                if (mIsPause) {
+                    mStartBundleMap.put(command, task.mBundle);
+                    continue;
+                }
+                command.mStartTime = SystemClock.uptimeMillis();
+                command.setTimer(mTimer);
+                command.setProgressListener(mOnCommandProgressListener);
+            }
+            command.start(mHandler, task.mBundle);
+            if (task.mRunSerial != mRunSerial) {
+                // The run stopped while the Command was starting, stopAllCurCommands() may have missed it
+                command.stop();
+            }
+        }
+    }
+
     private Command.OnCommandUpdateListener mOnCommandUpdateListener = new Command.OnCommandUpdateListener() {
 
         @Override
         public void onComplete(final Command callCommand, final Bundle bundle) {
             Debug.logD(TAG, "onComplete");
-            mMainHandler.post(new OnDoneRunnable(callCommand, bundle, false));
+            postDone(callCommand, bundle, false);
         }
 
         @Override
         public void onError(final Command callCommand, final Bundle bundle) {
             Debug.logD(TAG, "onError");
-            mMainHandler.post(new OnDoneRunnable(callCommand, bundle, true));
+            postDone(callCommand, bundle, true);
+        }
+    };
+
+    private static class StartTask {
+        final Command mCommand;
+        final Bundle mBundle;
+        final int mRunSerial;
+
+        StartTask(Command command, Bundle bundle, int runSerial) {
+            mCommand = command;
+            mBundle = bundle;
+            mRunSerial = runSerial;
+        }
+    }
+
+    private static class Progress {
+        final float mProgress;
+        final Bundle mBundle;
+
+        Progress(float progress, Bundle bundle) {
+            mProgress = progress;
+            mBundle = bundle;
+        }
+    }
+
+    private Command.OnCommandProgressListener mOnCommandProgressListener = new Command.OnCommandProgressListener() {
+
+        @Override
+        public void onProgress(Command callCommand, float progress, Bundle bundle) {
+            synchronized (mProgressListenerSet) {
+                if (mProgressListenerSet.isEmpty()) {
+                    return;
+                }
+            }
+            Handler mainHandler = mMainHandler;
+            if (mainHandler == null) {
+                return;
+            }
+            synchronized (mProgressMap) {
+                mProgressMap.put(callCommand, new Progress(progress, bundle));
+                if (mIsProgressScheduled) {
+                    return;
+                }
+                mIsProgressScheduled = true;
+            }
+            long interval = mProgressInterval;
+            if (interval > 0) {
+                mainHandler.postDelayed(mDeliverProgressRunnable, interval);
+            } else {
+                mainHandler.post(mPostFrameRunnable);
+            }
+        }
+    };
+
+    /**
+     * Forget the undelivered progress of a completed or stopped Command, and the progress it reports later
+     */
+    private void dropProgress(Command command) {
+        command.setProgressListener(null);
+        synchronized (mProgressMap) {
+            mProgressMap.remove(command);
+        }
+    }
+
+    private Runnable mPostFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mProgressFrameCallback);
+        }
+    };
+
+    private Choreographer.FrameCallback mProgressFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mDeliverProgressRunnable.run();
+        }
+    };
+
+    private Runnable mDeliverProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<Command, Progress> progressMap;
+            synchronized (mProgressMap) {
+                progressMap = mProgressMap;
+                mProgressMap = new LinkedHashMap<Command, Progress>();
+                mIsProgressScheduled = false;
+            }
+            Object[] list;
+            synchronized (mProgressListenerSet) {
+                list = mProgressListenerSet.toArray();
+            }
+            for (Map.Entry<Command, Progress> entry : progressMap.entrySet()) {
+                Progress progress = entry.getValue();
+                for (Object listener : list) {
+                    ((OnProgressListener) listener).onProgress(entry.getKey(), progress.mProgress, progress.mBundle);
+                }
+            }
         }
     };
 
+    private void postDone(Command callCommand, Bundle bundle, boolean isError) {
+        OnDoneRunnable onDone = new OnDoneRunnable(callCommand, bundle, isError, mRunSerial);
+        if (isFusing() && (callCommand.isSynchronous() || callCommand instanceof SpawnCommand)) {
+            // Completed inside the dispatch which started it, handle it in the same dispatch
+            mFusedDoneQueue.addLast(onDone);
+            return;
+        }
+        dispatch(onDone);
+    }
+
+    private void dispatch(OnDoneRunnable onDone) {
+        Command.Priority priority = onDone.mCallCommand.getPriority();
+        mDispatcher.post(priority == null ? mRunPriority : priority, onDone);
+    }
+
+    private boolean isFusing() {
+        return mIsFusing && Looper.myLooper() == mDispatchLooper;
+    }
+
+    /**
+     * Post the listener update, the updates of a fused dispatch are posted together after it in the same order
+     */
+    private void postUpdate(Runnable update) {
+        if (isFusing()) {
+            mFusedUpdateList.add(update);
+        } else {
+            mMainHandler.post(update);
+        }
+    }
+
+    private void flushFusedUpdates() {
+        if (mFusedUpdateList.isEmpty()) {
+            return;
+        }
+        final Runnable[] updates = mFusedUpdateList.toArray(new Runnable[mFusedUpdateList.size()]);
+        mFusedUpdateList.clear();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable update : updates) {
+                    update.run();
+                }
+            }
+        });
+    }
+
     private class OnDoneRunnable implements Runnable {
 
         private Command mCallCommand;
         private Bundle mBundle;
         private boolean mIsError;
+        private int mRunSerial;
+        // When the Command completed, the time waiting in a dispatch lane is not its latency
+        private long mDoneTime;
 
-        public OnDoneRunnable(Command callCommand, Bundle bundle, boolean isError) {
+        public OnDoneRunnable(Command callCommand, Bundle bundle, boolean isError, int runSerial) {
             this.mCallCommand = callCommand;
             this.mBundle = bundle;
             mIsError = isError;
+            mRunSerial = runSerial;
+            mDoneTime = SystemClock.uptimeMillis();
         }
 
         public void run() {
+            if (mIsFusing) {
+                // Handled by the loop of the fused dispatch running on this thread
+                mFusedDoneQueue.addLast(this);
+                return;
+            }
+            // The synchronous Commands started here complete before start() returns, their completions are queued
+            // to mFusedDoneQueue and handled in this loop instead of a dispatch cycle each. mControlLock is held
+            // for one completion at a time and released while the Commands start, so start(), stop(), pause() and
+            // resume() of other threads get in between the fused completions
+            mIsFusing = true;
+            try {
+                OnDoneRunnable done = this;
+                int fusedCount = 0;
+                while (done != null) {
+                    List<StartTask> starts;
+                    synchronized (mControlLock) {
+                        done.handle();
+                        starts = takeStartsLocked();
+                    }
+                    runStarts(starts);
+                    done = mFusedDoneQueue.pollFirst();
+                    if (done != null && ++fusedCount > MAX_FUSED_COUNT) {
+                        // Let other messages run, e.g. a chain of synchronous Commands that never ends. The
+                        // completions keep their run serial, they are dropped if the run stops meanwhile
+                        mIsFusing = false;
+                        do {
+                            dispatch(done);
+                        } while ((done = mFusedDoneQueue.pollFirst()) != null);
+                    }
+                }
+            } finally {
+                mIsFusing = false;
+            }
+            writeSnapshot();
+            flushFusedUpdates();
+        }
+
+        /**
+         * Called with mControlLock held, the next Commands are only queued by startCommand()
+         */
+        private void handle() {
+            if (mRunSerial != CommandDirector.this.mRunSerial) {
+                Debug.logD(TAG, "OnDoneRunnable of a stopped run: " + mCallCommand);
+                return;
+            }
             Debug.logD(TAG, "OnDoneRunnable.mCallCommand=" + mCallCommand.toString());
-            Debug.logD(TAG, "OnDoneRunnable.mNextCommand=" + mCallCommand.getNext());
+            Debug.logD(TAG, "OnDoneRunnable.hasNext=" + mCallCommand.hasNext());
 
             SpawnCommand doneSpawnCommand = null;
 
+            if (!mIsError && mCallCommand.mStartTime >= 0) {
+                mLatencyTracker.record(mCallCommand.getClass(), mDoneTime - mCallCommand.mStartTime);
+            }
+            mCallCommand.mStartTime = -1;
             mCurCommandVector.remove(mCallCommand);
+            dropProgress(mCallCommand);
+            mRunBundleMap.remove(mCallCommand);
             if (mCallCommand.getParentId() < 0) {
                 Debug.logD(TAG, "OnDoneRunnable.normal Command");
-                if (mCallCommand.hasNext()) {
+                Command nextCommand = resolve(mCallCommand.getNext(), mBundle);
+                if (nextCommand != null) {
                     if (mIsError) {
-                        CommandDirector.this.onError(mCallCommand, mCallCommand.getNext(), mBundle);
+                        CommandDirector.this.onError(mCallCommand, nextCommand, mBundle);
                     }
-                    CommandDirector.this.onNext(mCallCommand, mCallCommand.getNext(), mBundle);
-                    startNext(mCallCommand.getNext(), mBundle);
+                    CommandDirector.this.onNext(mCallCommand, nextCommand, mBundle);
+                    startNext(nextCommand, mBundle);
                 }
+                mCallCommand.releaseNext();
             } else {
                 Debug.logD(TAG, "OnDoneRunnable.spawn Command");
                 synchronized (mSpawnMap) {
@@ -319,8 +1582,9 @@ public class CommandDirector {
                     Debug.logD(TAG, "OnDoneRunnable.spawnData.id=" + spawnData.getCommand().getId());
 
                     if (spawnData != null) {
-                        if (mCallCommand.hasNext()) {
-                            Command nextCommand = mCallCommand.getNext();
+                        Command nextCommand = resolve(mCallCommand.getNext(), mBundle);
+                        mCallCommand.releaseNext();
+                        if (nextCommand != null) {
                             nextCommand.setParentId(mCallCommand.getParentId());
                             Vector<Command> cVector = spawnData.getChildren();
                             cVector.set(cVector.indexOf(mCallCommand), nextCommand);
@@ -338,8 +1602,10 @@ public class CommandDirector {
                                     for (Command command : cVector) {
                                         command.stop();
                                         mCurCommandVector.remove(command);
+                                        dropProgress(command);
+                                        mRunBundleMap.remove(command);
                                     }
-                                    if (parentAct.hasNext()) {
+                                    if (parentAct.getNext() != null) {
                                         int perId = parentAct.getParentId();
                                         Command nextAct = parentAct.getNext();
                                         nextAct.setParentId(perId);
@@ -350,7 +1616,7 @@ public class CommandDirector {
                                 case ALL_DONE:
                                     if (cVector.size() <= 1) {
                                         cVector.remove(mCallCommand);
-                                        if (parentAct.hasNext()) {
+                                        if (parentAct.getNext() != null) {
                                             int perId = parentAct.getParentId();
                                             Command nextAct = parentAct.getNext();
                                             nextAct.setParentId(perId);
@@ -371,32 +1637,45 @@ public class CommandDirector {
 
             Debug.logD(TAG, "OnDoneRunnable.mCurCommandVector.size()=" + mCurCommandVector.size());
 
+            if (doneSpawnCommand != null) {
+                if (mSnapshot != null) {
+                    mRunBundleMap.put(doneSpawnCommand, mBundle);
+                }
+                postDone(doneSpawnCommand, mBundle, mIsError);
+            }
+
             if (mCurCommandVector.isEmpty()) {
+                // Going idle and starting the next pending run are one step, a start() in between would jump the queue
                 mIsProcessing = false;
                 CommandDirector.this.onComplete(mCallCommand, mBundle);
-            }
-
-            if (doneSpawnCommand != null) {
-                mMainHandler.post(new OnDoneRunnable(doneSpawnCommand, mBundle, mIsError));
+                startPendingLocked();
             }
         }
     }
 
-    private Object[] collectListener() {
+    private Object[] collectListener(List<OnDirectorUpdateListener> runListeners) {
         Object[] listeners = null;
         synchronized (mListenerSet) {
-            if (mListenerSet.size() > 0) {
-                listeners = mListenerSet.toArray();
+            if (runListeners.isEmpty()) {
+                if (mListenerSet.size() > 0) {
+                    listeners = mListenerSet.toArray();
+                }
+            } else {
+                Set<OnDirectorUpdateListener> set = new LinkedHashSet<OnDirectorUpdateListener>(mListenerSet);
+                set.addAll(runListeners);
+                listeners = set.toArray();
             }
         }
         return listeners;
     }
 
     private void onNext(final Command last, final Command next, final Bundle lastBundle) {
-        mMainHandler.post(new Runnable() {
+        publish(DirectorEvent.Type.NEXT, last, next, lastBundle);
+        final List<OnDirectorUpdateListener> runListeners = mRunListeners;
+        postUpdate(new Runnable() {
             @Override
             public void run() {
-                Object[] list = collectListener();
+                Object[] list = collectListener(runListeners);
                 if (list != null) {
                     for (int i = 0; i < list.length; i++) {
                         ((OnDirectorUpdateListener) list[i]).onNext(last, next, lastBundle);
@@ -407,10 +1686,12 @@ public class CommandDirector {
     }
 
     private void onComplete(final Command last, final Bundle lastBundle) {
-        mMainHandler.post(new Runnable() {
+        publish(DirectorEvent.Type.COMPLETE, last, null, lastBundle);
+        final List<OnDirectorUpdateListener> runListeners = mRunListeners;
+        postUpdate(new Runnable() {
             @Override
             public void run() {
-                Object[] list = collectListener();
+                Object[] list = collectListener(runListeners);
                 if (list != null) {
                     for (int i = 0; i < list.length; i++) {
                         ((OnDirectorUpdateListener) list[i]).onComplete(last, lastBundle);
@@ -422,10 +1703,12 @@ public class CommandDirector {
     }
 
     private void onError(final Command last, final Command next, final Bundle errorBundle) {
-        mMainHandler.post(new Runnable() {
+        publish(DirectorEvent.Type.ERROR, last, next, errorBundle);
+        final List<OnDirectorUpdateListener> runListeners = mRunListeners;
+        postUpdate(new Runnable() {
             @Override
             public void run() {
-                Object[] list = collectListener();
+                Object[] list = collectListener(runListeners);
                 if (list != null) {
                     for (int i = 0; i < list.length; i++) {
                         ((OnDirectorUpdateListener) list[i]).onError(last, next, errorBundle);
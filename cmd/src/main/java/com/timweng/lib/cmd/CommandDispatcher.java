@@ -0,0 +1,116 @@
+package com.timweng.lib.cmd;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * The dispatch queue of CommandDirector, there is one FIFO lane for each Command.Priority and the higher lane is
+ * always drained first. A task gets one lane higher for every aging period it waits, so the lower lanes don't starve.
+ */
+final class CommandDispatcher {
+
+    static final long DEFAULT_AGING_MILLIS = 100;
+
+    // Tasks run in one Handler message at most, the rest are posted again so other messages can interleave
+    private static final int MAX_BATCH = 16;
+
+    private static final class Task {
+        final Runnable mRunnable;
+        final long mEnqueueTime;
+
+        Task(Runnable runnable, long enqueueTime) {
+            mRunnable = runnable;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    // A typed lane, so the array of lanes needs no unchecked generic array
+    private static final class Lane extends ArrayDeque<Task> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final Handler mHandler;
+    private final Lane[] mLanes;
+    private volatile long mAgingMillis = DEFAULT_AGING_MILLIS;
+    private boolean mIsScheduled = false;
+
+    CommandDispatcher(Handler handler) {
+        mHandler = handler;
+        mLanes = new Lane[Command.Priority.values().length];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane();
+        }
+    }
+
+    void setAgingMillis(long agingMillis) {
+        mAgingMillis = agingMillis > 0 ? agingMillis : DEFAULT_AGING_MILLIS;
+    }
+
+    void post(Command.Priority priority, Runnable runnable) {
+        synchronized (mLanes) {
+            mLanes[priority.ordinal()].addLast(new Task(runnable, SystemClock.uptimeMillis()));
+            if (!mIsScheduled) {
+                mIsScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    int getQueueDepth(Command.Priority priority) {
+        synchronized (mLanes) {
+            return mLanes[priority.ordinal()].size();
+        }
+    }
+
+    void clear() {
+        synchronized (mLanes) {
+            for (ArrayDeque<Task> lane : mLanes) {
+                lane.clear();
+            }
+            mHandler.removeCallbacks(mDrainRunnable);
+            mIsScheduled = false;
+        }
+    }
+
+    /**
+     * Pick the lane to run from, the effective rank of a lane head is its lane minus the aging periods it waited
+     */
+    private Task poll(long now) {
+        int bestLane = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < mLanes.length; i++) {
+            Task head = mLanes[i].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            long rank = i - (now - head.mEnqueueTime) / mAgingMillis;
+            if (rank < bestRank) {
+                bestRank = rank;
+                bestLane = i;
+            }
+        }
+        return bestLane < 0 ? null : mLanes[bestLane].pollFirst();
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Task task;
+                synchronized (mLanes) {
+                    task = poll(SystemClock.uptimeMillis());
+                    if (task == null) {
+                        mIsScheduled = false;
+                        return;
+                    }
+                }
+                task.mRunnable.run();
+            }
+            synchronized (mLanes) {
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    };
+}
@@ -0,0 +1,225 @@
+package com.timweng.lib.cmd;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import com.timweng.lib.cmd.unit.ControlCommand;
+import com.timweng.lib.cmd.unit.SpawnCommand;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoint file of CommandDirector, the run state is kept in a memory-mapped file so a write is only a memory
+ * copy and survives the process being killed.
+ * <p>
+ * Layout: magic(int), body length(int), body CRC32(int), body. A length of 0 means there is nothing to restore.
+ */
+final class CommandSnapshot {
+    private static final String TAG = "CommandSnapshot";
+
+    private static final int MAGIC = 0x43445331; // "CDS1"
+    private static final int HEADER_SIZE = 12;
+    private static final int INITIAL_SIZE = 4096;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    // The body in the file, write() copies only the bytes which differ from it
+    private byte[] mLastBody = null;
+
+    CommandSnapshot(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        map((int) Math.max(INITIAL_SIZE, mChannel.size()));
+    }
+
+    private void map(int size) throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Replace the snapshot body, only the range which differs from the last body is written
+     *
+     * @param body the encoded run state
+     * @throws IOException if the file can not grow
+     */
+    synchronized void write(byte[] body) throws IOException {
+        int need = HEADER_SIZE + body.length;
+        if (need > mBuffer.capacity()) {
+            int size = mBuffer.capacity();
+            while (size < need) {
+                size *= 2;
+            }
+            map(size);
+            mLastBody = null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        int start = 0;
+        int end = body.length;
+        byte[] last = mLastBody;
+        if (last != null) {
+            int common = Math.min(last.length, body.length);
+            while (start < common && last[start] == body[start]) {
+                start++;
+            }
+            if (last.length == body.length) {
+                while (end > start && last[end - 1] == body[end - 1]) {
+                    end--;
+                }
+            }
+        }
+
+        // The body goes first, a torn write leaves a CRC mismatch instead of a wrong state
+        mBuffer.position(HEADER_SIZE + start);
+        mBuffer.put(body, start, end - start);
+        mLastBody = body.clone();
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, body.length);
+        mBuffer.putInt(8, (int) crc.getValue());
+    }
+
+    /**
+     * Read the snapshot body
+     *
+     * @return the encoded run state, null if there is no valid snapshot
+     */
+    synchronized byte[] read() {
+        if (mBuffer.getInt(0) != MAGIC) {
+            return null;
+        }
+        int length = mBuffer.getInt(4);
+        if (length <= 0 || HEADER_SIZE + length > mBuffer.capacity()) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        mBuffer.position(HEADER_SIZE);
+        mBuffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        if ((int) crc.getValue() != mBuffer.getInt(8)) {
+            Debug.logD(TAG, "read() failed: checksum mismatch");
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * Mark the snapshot as empty, the run is completed or stopped
+     */
+    synchronized void clear() {
+        mBuffer.putInt(4, 0);
+        mLastBody = null;
+    }
+
+    synchronized void close() {
+        try {
+            mBuffer.force();
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            Debug.logE(TAG, "close() failed", e);
+        }
+    }
+
+    static byte[] marshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static Bundle readBundle(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(CommandSnapshot.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * The position of every Command reachable from a root Command, the same graph built again gets the same positions,
+     * which is how a snapshot refers to Commands across processes. The Commands created by CommandSupplier have no
+     * position, while one of them is running the last snapshot is kept as it is.
+     */
+    static final class GraphIndex {
+        private final List<Command> mCommands = new ArrayList<Command>();
+        private final IdentityHashMap<Command, Integer> mIndexMap = new IdentityHashMap<Command, Integer>();
+
+        GraphIndex(Command root) {
+            add(root);
+            for (int i = 0; i < mCommands.size(); i++) {
+                Command command = mCommands.get(i);
+                if (command instanceof SpawnCommand) {
+                    addAll(((SpawnCommand) command).getCommands());
+                    addNext(command);
+                } else if (command instanceof ControlCommand) {
+                    addAll(((ControlCommand) command).getBranches());
+                    addNext(command);
+                } else {
+                    addNext(command);
+                }
+            }
+        }
+
+        private void addNext(Command command) {
+            // The Commands created by CommandSupplier are not part of the built graph, never create them here
+            if (command.mNextSupplier == null) {
+                add(command.mNextCommand);
+            }
+        }
+
+        private void addAll(Command[] commands) {
+            if (commands != null) {
+                for (Command command : commands) {
+                    add(command);
+                }
+            }
+        }
+
+        private void add(Command command) {
+            if (command != null && !mIndexMap.containsKey(command)) {
+                mIndexMap.put(command, mCommands.size());
+                mCommands.add(command);
+            }
+        }
+
+        int size() {
+            return mCommands.size();
+        }
+
+        int indexOf(Command command) {
+            Integer index = mIndexMap.get(command);
+            return index == null ? -1 : index;
+        }
+
+        Command get(int index) {
+            if (index < 0 || index >= mCommands.size()) {
+                return null;
+            }
+            return mCommands.get(index);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.timweng.lib.cmd;
+
+/**
+ * Create a Command subgraph only when CommandDirector reaches it, the subgraph can be collected after it is done
+ */
+public interface CommandSupplier {
+    /**
+     * @return the first Command of the new subgraph, null means there is no Command
+     */
+    public Command get();
+}
@@ -0,0 +1,58 @@
+package com.timweng.lib.cmd;
+
+import android.os.Bundle;
+
+/**
+ * An update of CommandDirector published by DirectorPublisher, the same updates OnDirectorUpdateListener gets
+ */
+public class DirectorEvent {
+
+    public static enum Type {
+        NEXT, COMPLETE, ERROR
+    }
+
+    private final Type mType;
+    private final Command mLastCommand;
+    private final Command mNextCommand;
+    private final Bundle mBundle;
+    private final String mRunKey;
+
+    DirectorEvent(Type type, Command lastCommand, Command nextCommand, Bundle bundle, String runKey) {
+        mType = type;
+        mLastCommand = lastCommand;
+        mNextCommand = nextCommand;
+        mBundle = bundle;
+        mRunKey = runKey;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public Command getLastCommand() {
+        return mLastCommand;
+    }
+
+    /**
+     * @return the next Command, null for Type.COMPLETE
+     */
+    public Command getNextCommand() {
+        return mNextCommand;
+    }
+
+    public Bundle getBundle() {
+        return mBundle;
+    }
+
+    /**
+     * @return the key the run was started with, null if it has no key
+     */
+    public String getRunKey() {
+        return mRunKey;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectorEvent{" + mType + ", " + mLastCommand + " -> " + mNextCommand + "}";
+    }
+}
@@ -0,0 +1,284 @@
+package com.timweng.lib.cmd;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publish the updates of CommandDirector as a stream with demand-based backpressure, the interfaces follow
+ * java.util.concurrent.Flow (which needs API 30).
+ * <p>
+ * An update is delivered only when the Subscriber has requested it, the rest wait in a bounded buffer of each
+ * Subscriber, so a slow Subscriber can't make the memory grow. Updates are delivered by the Executor of each
+ * Subscriber (the main thread by default), never at the same time and never inside publish() or request(), so a slow
+ * Subscriber doesn't hold up CommandDirector and a Subscriber calling back into it doesn't run under its lock.
+ */
+public class DirectorPublisher {
+    private static final String TAG = "DirectorPublisher";
+
+    /**
+     * What to do with a new update when the buffer of a Subscriber is full
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Drop the oldest buffered update
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new update
+         */
+        DROP_LATEST,
+        /**
+         * Replace the buffered NEXT update by the new NEXT update, so only the latest progress waits. COMPLETE and
+         * ERROR updates are kept, the oldest update is dropped if the buffer is still full
+         */
+        CONFLATE
+    }
+
+    public static interface Subscriber<T> {
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    public static interface Subscription {
+        /**
+         * @param n the count of more updates the Subscriber can handle, Long.MAX_VALUE means no limit
+         */
+        public void request(long n);
+
+        public void cancel();
+    }
+
+    private final CommandDirector mDirector;
+    private final int mBufferSize;
+    private final OverflowPolicy mPolicy;
+    private final CopyOnWriteArrayList<SubscriptionImpl> mSubscriptions =
+            new CopyOnWriteArrayList<SubscriptionImpl>();
+    private volatile boolean mIsClosed = false;
+
+    DirectorPublisher(CommandDirector director, int bufferSize, OverflowPolicy policy) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must larger than 0");
+        }
+        mDirector = director;
+        mBufferSize = bufferSize;
+        mPolicy = policy == null ? OverflowPolicy.DROP_OLDEST : policy;
+    }
+
+    /**
+     * Subscribe with the updates delivered on the main thread
+     */
+    public void subscribe(Subscriber<? super DirectorEvent> subscriber) {
+        subscribe(subscriber, new MainExecutor());
+    }
+
+    /**
+     * Subscribe with the updates delivered by the executor, onSubscribe() is called on the calling thread
+     *
+     * @param subscriber the Subscriber
+     * @param executor   runs the deliveries of this Subscriber, one at a time
+     */
+    public void subscribe(Subscriber<? super DirectorEvent> subscriber, Executor executor) {
+        if (subscriber == null || executor == null) {
+            throw new NullPointerException("subscriber and executor can not be null");
+        }
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber, executor);
+        subscriber.onSubscribe(subscription);
+        if (mIsClosed) {
+            subscription.complete();
+            return;
+        }
+        mSubscriptions.add(subscription);
+    }
+
+    /**
+     * Stop publishing, every Subscriber gets onComplete() after its buffered updates
+     */
+    public void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        if (mDirector != null) {
+            mDirector.removePublisher(this);
+        }
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.complete();
+        }
+        mSubscriptions.clear();
+    }
+
+    /**
+     * Get the count of updates dropped for all Subscribers, because they were full
+     *
+     * @return the count of dropped updates
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            count += subscription.mDroppedCount.get();
+        }
+        return count;
+    }
+
+    void publish(DirectorEvent event) {
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    private static class MainExecutor implements Executor {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    }
+
+    private class SubscriptionImpl implements Subscription {
+        private final Subscriber<? super DirectorEvent> mSubscriber;
+        private final Executor mExecutor;
+        private final ArrayDeque<DirectorEvent> mBuffer = new ArrayDeque<DirectorEvent>();
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mWip = new AtomicInteger();
+        private final AtomicLong mDroppedCount = new AtomicLong();
+        private volatile boolean mIsCancelled = false;
+        private volatile boolean mIsDone = false;
+        private Throwable mError = null;
+
+        SubscriptionImpl(Subscriber<? super DirectorEvent> subscriber, Executor executor) {
+            mSubscriber = subscriber;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (mIsCancelled) {
+                return;
+            }
+            if (n <= 0) {
+                mError = new IllegalArgumentException("request must larger than 0: " + n);
+                mIsDone = true;
+                drain();
+                return;
+            }
+            while (true) {
+                long current = mRequested.get();
+                long next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (mRequested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mIsCancelled = true;
+            mSubscriptions.remove(this);
+            synchronized (mBuffer) {
+                mBuffer.clear();
+            }
+        }
+
+        void complete() {
+            mIsDone = true;
+            drain();
+        }
+
+        void offer(DirectorEvent event) {
+            if (mIsCancelled || mIsDone) {
+                return;
+            }
+            synchronized (mBuffer) {
+                if (mPolicy == OverflowPolicy.CONFLATE && event.getType() == DirectorEvent.Type.NEXT) {
+                    DirectorEvent last = mBuffer.peekLast();
+                    if (last != null && last.getType() == DirectorEvent.Type.NEXT) {
+                        mBuffer.pollLast();
+                        mDroppedCount.incrementAndGet();
+                    }
+                }
+                if (mBuffer.size() >= mBufferSize) {
+                    mDroppedCount.incrementAndGet();
+                    if (mPolicy == OverflowPolicy.DROP_LATEST) {
+                        Debug.logD(TAG, "offer() dropped: " + event);
+                        return;
+                    }
+                    DirectorEvent dropped = mBuffer.pollFirst();
+                    Debug.logD(TAG, "offer() dropped: " + dropped);
+                }
+                mBuffer.addLast(event);
+            }
+            drain();
+        }
+
+        /**
+         * Deliver the buffered updates the Subscriber requested on the executor, only one delivery runs at a time and
+         * the others leave the work to it
+         */
+        private void drain() {
+            if (mWip.getAndIncrement() != 0) {
+                return;
+            }
+            mExecutor.execute(mDrainRunnable);
+        }
+
+        private final Runnable mDrainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        };
+
+        private void drainLoop() {
+            int missed = 1;
+            while (true) {
+                while (!mIsCancelled && mRequested.get() > 0) {
+                    DirectorEvent event;
+                    synchronized (mBuffer) {
+                        event = mBuffer.pollFirst();
+                    }
+                    if (event == null) {
+                        break;
+                    }
+                    if (mRequested.get() != Long.MAX_VALUE) {
+                        mRequested.decrementAndGet();
+                    }
+                    mSubscriber.onNext(event);
+                }
+                if (!mIsCancelled && mIsDone) {
+                    boolean isEmpty;
+                    synchronized (mBuffer) {
+                        isEmpty = mBuffer.isEmpty();
+                    }
+                    if (mError != null || isEmpty) {
+                        mIsCancelled = true;
+                        if (mError != null) {
+                            mSubscriber.onError(mError);
+                        } else {
+                            mSubscriber.onComplete();
+                        }
+                    }
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
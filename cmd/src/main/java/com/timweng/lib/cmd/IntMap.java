@@ -0,0 +1,157 @@
+package com.timweng.lib.cmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A map of int keys without boxing, used for the Command ID lookups of CommandDirector. It's open addressing with
+ * linear probing, a removed slot is filled by shifting the later entries back, so there are no tombstones.
+ * <p>
+ * Not thread-safe, values can not be null.
+ */
+final class IntMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize = 0;
+
+    IntMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    private int slotOf(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mMask;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        for (int i = slotOf(key); mValues[i] != null; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                return (V) mValues[i];
+            }
+        }
+        return null;
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the old value, null if there was no value
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value can not be null");
+        }
+        int i = slotOf(key);
+        for (; mValues[i] != null; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                V old = (V) mValues[i];
+                mValues[i] = value;
+                return old;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        // Keep the load factor under 0.5, the probe chains stay short
+        if (++mSize * 2 > mValues.length) {
+            rehash(mValues.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, null if there was no value
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int i = slotOf(key);
+        for (; mValues[i] != null; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                break;
+            }
+        }
+        V old = (V) mValues[i];
+        if (old == null) {
+            return null;
+        }
+        mValues[i] = null;
+        mSize--;
+
+        // Shift back the later entries of the probe chain which can not be found past the empty slot
+        int empty = i;
+        for (int j = (i + 1) & mMask; mValues[j] != null; j = (j + 1) & mMask) {
+            int home = slotOf(mKeys[j]);
+            if (((j - home) & mMask) >= ((j - empty) & mMask)) {
+                mKeys[empty] = mKeys[j];
+                mValues[empty] = mValues[j];
+                mValues[j] = null;
+                empty = j;
+            }
+        }
+        return old;
+    }
+
+    private void rehash(int capacity) {
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                int j = slotOf(keys[i]);
+                while (mValues[j] != null) {
+                    j = (j + 1) & mMask;
+                }
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+            }
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        if (mValues.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mValues, null);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @return a copy of the values
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> list = new ArrayList<V>(mSize);
+        for (Object value : mValues) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+}
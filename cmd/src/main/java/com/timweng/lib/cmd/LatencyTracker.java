@@ -0,0 +1,91 @@
+package com.timweng.lib.cmd;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The expected latency of every Command class, learned by CommandDirector as an exponentially weighted moving average
+ * of the measured latencies. The estimates are used to start the longest expected Commands first.
+ */
+final class LatencyTracker {
+
+    static final double DEFAULT_ALPHA = 0.2;
+
+    // The next Commands are counted up to this depth, a chain can be a loop
+    private static final int MAX_CHAIN_DEPTH = 64;
+
+    private final HashMap<Class<?>, double[]> mEstimateMap = new HashMap<Class<?>, double[]>();
+    private volatile double mAlpha = DEFAULT_ALPHA;
+
+    /**
+     * @param alpha the weight of a new latency, between 0 and 1
+     */
+    void setAlpha(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must between 0 and 1: " + alpha);
+        }
+        mAlpha = alpha;
+    }
+
+    synchronized void record(Class<?> type, long latency) {
+        double[] estimate = mEstimateMap.get(type);
+        if (estimate == null) {
+            mEstimateMap.put(type, new double[]{latency});
+        } else {
+            estimate[0] += mAlpha * (latency - estimate[0]);
+        }
+    }
+
+    /**
+     * @return the expected latency, 0 if the class was never measured
+     */
+    synchronized double estimate(Class<?> type) {
+        double[] estimate = mEstimateMap.get(type);
+        return estimate == null ? 0 : estimate[0];
+    }
+
+    /**
+     * The expected latency of a Command and the Commands after it, the Commands created by CommandSupplier are not
+     * counted
+     */
+    double estimateChain(Command command) {
+        double total = 0;
+        for (int depth = 0; command != null && depth < MAX_CHAIN_DEPTH; depth++) {
+            total += estimate(command.getClass());
+            command = command.mNextCommand;
+        }
+        return total;
+    }
+
+    /**
+     * Sort the Commands by the expected latency of their chains, longest first, the Commands with the same estimate
+     * keep their order
+     */
+    void sortLongestFirst(Command[] commands) {
+        double[] estimates = new double[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            estimates[i] = estimateChain(commands[i]);
+        }
+        // Insertion sort, stable and fast for the few children of a spawn
+        for (int i = 1; i < commands.length; i++) {
+            Command command = commands[i];
+            double estimate = estimates[i];
+            int j = i - 1;
+            while (j >= 0 && estimates[j] < estimate) {
+                commands[j + 1] = commands[j];
+                estimates[j + 1] = estimates[j];
+                j--;
+            }
+            commands[j + 1] = command;
+            estimates[j + 1] = estimate;
+        }
+    }
+
+    void sortLongestFirst(List<Command> commands) {
+        Command[] array = commands.toArray(new Command[commands.size()]);
+        sortLongestFirst(array);
+        for (int i = 0; i < array.length; i++) {
+            commands.set(i, array[i]);
+        }
+    }
+}
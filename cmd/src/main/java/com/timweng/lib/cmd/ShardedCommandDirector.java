@@ -0,0 +1,186 @@
+package com.timweng.lib.cmd;
+
+/**
+ * N CommandDirectors, each with its own worker thread, timer, control lock and completion handling, so the runs of
+ * different shards never wait for each other. A run is pinned to a shard by the hash of its key, the runs of one key
+ * always go to the same shard, where they are queued, coalesced and shared as CommandDirector does.
+ * <p>
+ * Different keys can land on the same shard, so every shard keeps up to DEFAULT_QUEUE_CAPACITY pending runs
+ * (AdmissionPolicy.REJECT) instead of rejecting a key whose shard is busy, change it by setAdmissionQueue(). stop(),
+ * pause() and resume() of a key only control the run of that key, never a run of another key on the same shard.
+ * <p>
+ * The listeners are still called on the main thread.
+ */
+public class ShardedCommandDirector {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private final CommandDirector[] mShards;
+
+    /**
+     * Create one shard per available processor
+     */
+    public ShardedCommandDirector() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param shardCount the count of shards
+     */
+    public ShardedCommandDirector(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must larger than 0");
+        }
+        mShards = new CommandDirector[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new CommandDirector("CommandDirector.shard" + i, true);
+            mShards[i].setAdmissionQueue(DEFAULT_QUEUE_CAPACITY, CommandDirector.AdmissionPolicy.REJECT);
+        }
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * Get the shard of a key, e.g. to set its snapshot file or read its stats
+     *
+     * @param key the key of the runs
+     * @return the shard the runs of the key go to
+     */
+    public CommandDirector getShard(String key) {
+        return mShards[indexOf(key, mShards.length)];
+    }
+
+    public CommandDirector getShard(int index) {
+        return mShards[index];
+    }
+
+    static int indexOf(String key, int shardCount) {
+        int hash = key == null ? 0 : key.hashCode();
+        // Spread the bits, String hashes of similar keys differ only in the low bits
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % shardCount;
+    }
+
+    /**
+     * Start the Command on the shard of the key
+     *
+     * @param key     the key of the run, it's also the admission key of the shard (see CommandDirector.start())
+     * @param command the Command you want start
+     * @return true if the Command can start or is queued
+     */
+    public boolean start(String key, Command command) {
+        return getShard(key).start(command, key);
+    }
+
+    /**
+     * Start the Command on the shard of the key with a priority
+     *
+     * @param key      the key of the run
+     * @param command  the Command you want start
+     * @param priority the priority of the Commands which have no priority set
+     * @return true if the Command can start or is queued
+     */
+    public boolean start(String key, Command command, Command.Priority priority) {
+        return getShard(key).start(command, priority, key);
+    }
+
+    /**
+     * Start a shared run on the shard of the key, see CommandDirector.startShared()
+     */
+    public boolean startShared(String key, Command command, CommandDirector.OnDirectorUpdateListener listener) {
+        return getShard(key).startShared(key, command, listener);
+    }
+
+    public boolean detach(String key, CommandDirector.OnDirectorUpdateListener listener) {
+        return getShard(key).detach(key, listener);
+    }
+
+    /**
+     * Stop the run of the key, see CommandDirector.stop(String)
+     *
+     * @return false if the processing run of the shard is not of the key
+     */
+    public boolean stop(String key) {
+        return getShard(key).stop(key);
+    }
+
+    public boolean pause(String key) {
+        return getShard(key).pause(key);
+    }
+
+    public boolean resume(String key) {
+        return getShard(key).resume(key);
+    }
+
+    /**
+     * Stop the processing runs of all shards
+     */
+    public void stopAll() {
+        for (CommandDirector shard : mShards) {
+            shard.stop();
+        }
+    }
+
+    public void pauseAll() {
+        for (CommandDirector shard : mShards) {
+            shard.pause();
+        }
+    }
+
+    public void resumeAll() {
+        for (CommandDirector shard : mShards) {
+            shard.resume();
+        }
+    }
+
+    /**
+     * Register the listener to all shards
+     */
+    public void registerListener(CommandDirector.OnDirectorUpdateListener listener) {
+        for (CommandDirector shard : mShards) {
+            shard.registerListener(listener);
+        }
+    }
+
+    public void unregisterListener(CommandDirector.OnDirectorUpdateListener listener) {
+        for (CommandDirector shard : mShards) {
+            shard.unregisterListener(listener);
+        }
+    }
+
+    /**
+     * Set the admission queue of all shards, see CommandDirector.setAdmissionQueue()
+     */
+    public void setAdmissionQueue(int capacity, CommandDirector.AdmissionPolicy policy) {
+        for (CommandDirector shard : mShards) {
+            shard.setAdmissionQueue(capacity, policy);
+        }
+    }
+
+    /**
+     * Get the count of shards which are processing a run
+     *
+     * @return the processing count
+     */
+    public int getProcessingCount() {
+        int count = 0;
+        for (CommandDirector shard : mShards) {
+            if (shard.isProcessing()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Release all shards
+     */
+    public void release() {
+        for (CommandDirector shard : mShards) {
+            shard.release();
+        }
+    }
+}
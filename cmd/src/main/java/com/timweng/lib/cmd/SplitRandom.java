@@ -0,0 +1,92 @@
+package com.timweng.lib.cmd;
+
+/**
+ * A splittable pseudo-random generator (SplitMix64, the algorithm of java.util.SplittableRandom which needs API 24).
+ * <p>
+ * It is not thread-safe, every run gets its own instance from split(), so runs never contend on one generator and a
+ * seeded CommandDirector selects the same branches every time.
+ */
+public final class SplitRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private long mSeed;
+    private final long mGamma;
+
+    public SplitRandom(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitRandom(long seed, long gamma) {
+        mSeed = seed;
+        mGamma = gamma;
+    }
+
+    /**
+     * Create a new generator, its sequence does not overlap this one
+     *
+     * @return the new generator
+     */
+    public SplitRandom split() {
+        return new SplitRandom(nextLong(), mixGamma(nextSeed()));
+    }
+
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    public int nextInt() {
+        return mix32(nextSeed());
+    }
+
+    /**
+     * @param bound the upper bound (exclusive), must be positive
+     * @return a value between 0 (inclusive) and bound (exclusive)
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        int r = mix32(nextSeed());
+        int m = bound - 1;
+        if ((bound & m) == 0) {
+            r &= m;
+        } else {
+            for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextSeed()) >>> 1) {
+                // Reject the values of the last partial range
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return a value between 0.0 (inclusive) and 1.0 (exclusive)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    private long nextSeed() {
+        return mSeed += mGamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int mix32(long z) {
+        z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+        return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+    }
+
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
@@ -0,0 +1,529 @@
+package com.timweng.lib.cmd.plan;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.unit.SpawnCommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed and validated Command graph definition, every instantiate() builds a new Command graph from it.
+ * <p>
+ * The binary format is: magic(int), version(byte), type names, nodes, root. The numbers are var-length encoded, a node
+ * is its type index, a flag byte and the optional value, argument, next and children.
+ */
+public class CommandPlan {
+
+    static final int MAGIC = 0x43445031; // "CDP1"
+    static final int VERSION = 1;
+
+    private static final int FLAG_VALUE = 1;
+    private static final int FLAG_ARGUMENT = 1 << 1;
+    private static final int FLAG_NEXT = 1 << 2;
+    private static final int FLAG_CHILDREN = 1 << 3;
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private final String[] mTypes;
+    private final int[] mNodeTypes;
+    private final long[] mValues;
+    private final String[] mArguments;
+    private final int[] mNexts;
+    private final int[][] mChildren;
+    private final int mRoot;
+
+    // Resolved at load time, so instantiate() does no lookup or validation
+    private CommandRegistry.Creator[] mCreators;
+    private int[] mCreateOrder;
+
+    private CommandPlan(String[] types, int[] nodeTypes, long[] values, String[] arguments, int[] nexts,
+                        int[][] children, int root) {
+        mTypes = types;
+        mNodeTypes = nodeTypes;
+        mValues = values;
+        mArguments = arguments;
+        mNexts = nexts;
+        mChildren = children;
+        mRoot = root;
+    }
+
+    /**
+     * Get the count of nodes
+     *
+     * @return the count of nodes
+     */
+    public int size() {
+        return mNodeTypes.length;
+    }
+
+    /**
+     * Build a new Command graph
+     *
+     * @return the first Command of the graph
+     */
+    public Command instantiate() {
+        if (mCreators == null) {
+            throw new IllegalStateException("CommandPlan is not loaded by PlanLoader");
+        }
+        Command[] commands = new Command[mNodeTypes.length];
+        for (int node : mCreateOrder) {
+            int[] childNodes = mChildren[node];
+            Command[] children = new Command[childNodes.length];
+            for (int i = 0; i < childNodes.length; i++) {
+                children[i] = commands[childNodes[i]];
+            }
+            commands[node] = mCreators[mNodeTypes[node]].create(mValues[node], mArguments[node], children);
+        }
+        for (int node = 0; node < commands.length; node++) {
+            if (mNexts[node] >= 0) {
+                commands[node].setNext(commands[mNexts[node]]);
+            }
+        }
+        return commands[mRoot];
+    }
+
+    /**
+     * Encode the plan to the binary format
+     *
+     * @return the encoded bytes
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarInt(out, mTypes.length);
+            for (String type : mTypes) {
+                out.writeUTF(type);
+            }
+            writeVarInt(out, mNodeTypes.length);
+            for (int node = 0; node < mNodeTypes.length; node++) {
+                int flags = 0;
+                if (mValues[node] != 0) {
+                    flags |= FLAG_VALUE;
+                }
+                if (mArguments[node] != null) {
+                    flags |= FLAG_ARGUMENT;
+                }
+                if (mNexts[node] >= 0) {
+                    flags |= FLAG_NEXT;
+                }
+                if (mChildren[node].length > 0) {
+                    flags |= FLAG_CHILDREN;
+                }
+                writeVarInt(out, mNodeTypes[node]);
+                out.writeByte(flags);
+                if ((flags & FLAG_VALUE) != 0) {
+                    writeVarLong(out, (mValues[node] << 1) ^ (mValues[node] >> 63));
+                }
+                if ((flags & FLAG_ARGUMENT) != 0) {
+                    out.writeUTF(mArguments[node]);
+                }
+                if ((flags & FLAG_NEXT) != 0) {
+                    writeVarInt(out, mNexts[node]);
+                }
+                if ((flags & FLAG_CHILDREN) != 0) {
+                    writeVarInt(out, mChildren[node].length);
+                    for (int child : mChildren[node]) {
+                        writeVarInt(out, child);
+                    }
+                }
+            }
+            writeVarInt(out, mRoot);
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parse and validate the binary format
+     *
+     * @param data     the encoded bytes
+     * @param registry the registry the types are resolved from
+     * @return the plan ready to instantiate
+     * @throws IOException if the data is not a valid plan
+     */
+    static CommandPlan parse(byte[] data, CommandRegistry registry) throws IOException {
+        CommandPlan plan = decode(data);
+        plan.validate(registry);
+        return plan;
+    }
+
+    /**
+     * Parse the binary format which was validated before, only the types are resolved again
+     *
+     * @param data        the encoded bytes, the same bytes as the validated ones
+     * @param registry    the registry the types are resolved from
+     * @param createOrder the create order of the validated plan, see getCreateOrder()
+     * @return the plan ready to instantiate
+     * @throws IOException if the data or the create order does not match
+     */
+    static CommandPlan parseValidated(byte[] data, CommandRegistry registry, int[] createOrder) throws IOException {
+        CommandPlan plan = decode(data);
+        int nodeCount = plan.mNodeTypes.length;
+        if (createOrder.length != nodeCount) {
+            throw new IOException("create order does not match");
+        }
+        boolean[] seen = new boolean[nodeCount];
+        for (int node : createOrder) {
+            if (node < 0 || node >= nodeCount || seen[node]) {
+                throw new IOException("create order does not match");
+            }
+            seen[node] = true;
+        }
+        plan.mCreators = plan.resolveCreators(registry);
+        plan.mCreateOrder = createOrder;
+        return plan;
+    }
+
+    int[] getCreateOrder() {
+        return mCreateOrder;
+    }
+
+    private static CommandPlan decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a CommandPlan");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+        String[] types = new String[readCount(in, data.length)];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = in.readUTF();
+        }
+        int nodeCount = readCount(in, data.length);
+        int[] nodeTypes = new int[nodeCount];
+        long[] values = new long[nodeCount];
+        String[] arguments = new String[nodeCount];
+        int[] nexts = new int[nodeCount];
+        int[][] children = new int[nodeCount][];
+        for (int node = 0; node < nodeCount; node++) {
+            nodeTypes[node] = readVarInt(in);
+            int flags = in.readUnsignedByte();
+            if ((flags & FLAG_VALUE) != 0) {
+                long zigzag = readVarLong(in);
+                values[node] = (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            arguments[node] = (flags & FLAG_ARGUMENT) != 0 ? in.readUTF() : null;
+            nexts[node] = (flags & FLAG_NEXT) != 0 ? readVarInt(in) : -1;
+            if ((flags & FLAG_CHILDREN) != 0) {
+                children[node] = new int[readCount(in, data.length)];
+                for (int i = 0; i < children[node].length; i++) {
+                    children[node][i] = readVarInt(in);
+                }
+            } else {
+                children[node] = NO_CHILDREN;
+            }
+        }
+        int root = readVarInt(in);
+        return new CommandPlan(types, nodeTypes, values, arguments, nexts, children, root);
+    }
+
+    private CommandRegistry.Creator[] resolveCreators(CommandRegistry registry) throws IOException {
+        CommandRegistry.Creator[] creators = new CommandRegistry.Creator[mTypes.length];
+        for (int i = 0; i < mTypes.length; i++) {
+            creators[i] = registry.get(mTypes[i]);
+            if (creators[i] == null) {
+                throw new IOException("unknown type: " + mTypes[i]);
+            }
+        }
+        return creators;
+    }
+
+    private void validate(CommandRegistry registry) throws IOException {
+        int nodeCount = mNodeTypes.length;
+        if (nodeCount == 0 || mRoot < 0 || mRoot >= nodeCount) {
+            throw new IOException("invalid root: " + mRoot);
+        }
+        CommandRegistry.Creator[] creators = resolveCreators(registry);
+        for (int node = 0; node < nodeCount; node++) {
+            if (mNodeTypes[node] < 0 || mNodeTypes[node] >= mTypes.length) {
+                throw new IOException("invalid type of node " + node);
+            }
+            if (mNexts[node] < -1 || mNexts[node] >= nodeCount) {
+                throw new IOException("invalid next of node " + node);
+            }
+            for (int child : mChildren[node]) {
+                if (child < 0 || child >= nodeCount) {
+                    throw new IOException("invalid child of node " + node);
+                }
+            }
+            String type = mTypes[mNodeTypes[node]];
+            if (CommandRegistry.TYPE_DELAY.equals(type) && mValues[node] <= 0) {
+                throw new IOException("delay must larger than 0, node " + node);
+            } else if (CommandRegistry.TYPE_SPAWN.equals(type)
+                    && (mValues[node] < 0 || mValues[node] >= SpawnCommand.CompleteType.values().length)) {
+                throw new IOException("invalid CompleteType of node " + node);
+            } else if (CommandRegistry.TYPE_RANDOM.equals(type)) {
+                if (mChildren[node].length == 0) {
+                    throw new IOException("random without branch, node " + node);
+                }
+                if (mArguments[node] != null) {
+                    validateWeights(node);
+                }
+            }
+        }
+        checkReachable();
+        mCreateOrder = genCreateOrder();
+        mCreators = creators;
+    }
+
+    /**
+     * Every node must be reachable from the root by next or children, instantiate() would build the others for
+     * nothing
+     */
+    private void checkReachable() throws IOException {
+        int nodeCount = mNodeTypes.length;
+        boolean[] reached = new boolean[nodeCount];
+        int[] stack = new int[nodeCount];
+        int depth = 0;
+        stack[depth++] = mRoot;
+        reached[mRoot] = true;
+        while (depth > 0) {
+            int node = stack[--depth];
+            int next = mNexts[node];
+            if (next >= 0 && !reached[next]) {
+                reached[next] = true;
+                stack[depth++] = next;
+            }
+            for (int child : mChildren[node]) {
+                if (!reached[child]) {
+                    reached[child] = true;
+                    stack[depth++] = child;
+                }
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (!reached[node]) {
+                throw new IOException("node " + node + " is not reachable from the root");
+            }
+        }
+    }
+
+    private void validateWeights(int node) throws IOException {
+        double[] weights;
+        try {
+            weights = CommandRegistry.parseWeights(mArguments[node]);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid weights of node " + node);
+        }
+        if (weights.length != mChildren[node].length) {
+            throw new IOException("weights count does not match branches, node " + node);
+        }
+        double sum = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0) || Double.isInfinite(weight)) {
+                throw new IOException("invalid weights of node " + node);
+            }
+            sum += weight;
+        }
+        if (sum <= 0) {
+            throw new IOException("invalid weights of node " + node);
+        }
+    }
+
+    /**
+     * Children must be created before their parent, so the children relation can not have a cycle, the next relation
+     * can since it is linked after all the Commands are created.
+     */
+    private int[] genCreateOrder() throws IOException {
+        int nodeCount = mNodeTypes.length;
+        int[] order = new int[nodeCount];
+        int orderSize = 0;
+        byte[] states = new byte[nodeCount]; // 0: new, 1: visiting, 2: done
+        int[] stack = new int[nodeCount];
+        int[] cursor = new int[nodeCount];
+        for (int start = 0; start < nodeCount; start++) {
+            if (states[start] != 0) {
+                continue;
+            }
+            int depth = 0;
+            stack[0] = start;
+            cursor[0] = 0;
+            states[start] = 1;
+            while (depth >= 0) {
+                int node = stack[depth];
+                if (cursor[depth] < mChildren[node].length) {
+                    int child = mChildren[node][cursor[depth]++];
+                    if (states[child] == 1) {
+                        throw new IOException("children cycle at node " + child);
+                    } else if (states[child] == 0) {
+                        states[child] = 1;
+                        depth++;
+                        stack[depth] = child;
+                        cursor[depth] = 0;
+                    }
+                } else {
+                    states[node] = 2;
+                    order[orderSize++] = node;
+                    depth--;
+                }
+            }
+        }
+        return order;
+    }
+
+    private static int readCount(DataInput in, int limit) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > limit) {
+            throw new IOException("invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("invalid number: " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed number");
+    }
+
+    /**
+     * Declare a Command graph, the node index returned by add() is used to link the nodes
+     */
+    public static class Builder {
+        private final List<String> mTypeList = new ArrayList<String>();
+        private final Map<String, Integer> mTypeMap = new HashMap<String, Integer>();
+        private final List<Integer> mNodeTypeList = new ArrayList<Integer>();
+        private final List<Long> mValueList = new ArrayList<Long>();
+        private final List<String> mArgumentList = new ArrayList<String>();
+        private final List<Integer> mNextList = new ArrayList<Integer>();
+        private final List<int[]> mChildrenList = new ArrayList<int[]>();
+        private int mRoot = 0;
+
+        /**
+         * Add a node
+         *
+         * @param type     the type name registered in CommandRegistry
+         * @param value    the number value, e.g. the during of "delay" or the CompleteType ordinal of "spawn"
+         * @param argument the text argument, can be null
+         * @return the node index
+         */
+        public int add(String type, long value, String argument) {
+            Integer typeIndex = mTypeMap.get(type);
+            if (typeIndex == null) {
+                typeIndex = mTypeList.size();
+                mTypeList.add(type);
+                mTypeMap.put(type, typeIndex);
+            }
+            mNodeTypeList.add(typeIndex);
+            mValueList.add(value);
+            mArgumentList.add(argument);
+            mNextList.add(-1);
+            mChildrenList.add(NO_CHILDREN);
+            return mNodeTypeList.size() - 1;
+        }
+
+        public int addDelay(long during) {
+            return add(CommandRegistry.TYPE_DELAY, during, null);
+        }
+
+        public int addSpawn(SpawnCommand.CompleteType type, int... children) {
+            int node = add(CommandRegistry.TYPE_SPAWN, type.ordinal(), null);
+            setChildren(node, children);
+            return node;
+        }
+
+        public int addRandom(int... branches) {
+            int node = add(CommandRegistry.TYPE_RANDOM, 0, null);
+            setChildren(node, branches);
+            return node;
+        }
+
+        /**
+         * Add a "random" node with weighted branches
+         *
+         * @param weights  the weights, in the same order as the branches
+         * @param branches the branch nodes
+         * @return the node index
+         */
+        public int addWeightedRandom(double[] weights, int... branches) {
+            StringBuilder argument = new StringBuilder();
+            for (int i = 0; i < weights.length; i++) {
+                if (i > 0) {
+                    argument.append(',');
+                }
+                argument.append(weights[i]);
+            }
+            int node = add(CommandRegistry.TYPE_RANDOM, 0, argument.toString());
+            setChildren(node, branches);
+            return node;
+        }
+
+        public Builder setNext(int node, int nextNode) {
+            mNextList.set(node, nextNode);
+            return this;
+        }
+
+        public Builder setChildren(int node, int... children) {
+            mChildrenList.set(node, children == null ? NO_CHILDREN : children.clone());
+            return this;
+        }
+
+        /**
+         * Set the first node of the graph, default is the first added node
+         *
+         * @param node the node index
+         * @return this builder
+         */
+        public Builder setRoot(int node) {
+            mRoot = node;
+            return this;
+        }
+
+        public CommandPlan build() {
+            int nodeCount = mNodeTypeList.size();
+            int[] nodeTypes = new int[nodeCount];
+            long[] values = new long[nodeCount];
+            int[] nexts = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodeTypes[i] = mNodeTypeList.get(i);
+                values[i] = mValueList.get(i);
+                nexts[i] = mNextList.get(i);
+            }
+            return new CommandPlan(mTypeList.toArray(new String[mTypeList.size()]), nodeTypes, values,
+                    mArgumentList.toArray(new String[nodeCount]), nexts,
+                    mChildrenList.toArray(new int[nodeCount][]), mRoot);
+        }
+    }
+}
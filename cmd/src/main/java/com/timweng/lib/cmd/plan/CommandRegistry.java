@@ -0,0 +1,106 @@
+package com.timweng.lib.cmd.plan;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.unit.DelayCommand;
+import com.timweng.lib.cmd.unit.RandomCommand;
+import com.timweng.lib.cmd.unit.SpawnCommand;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Command types a CommandPlan can refer to, the built-in types are "delay", "spawn" and "random" (the argument
+ * is the optional comma separated weights), user registers the customized Commands (e.g. FunctionCommand) by name.
+ */
+public class CommandRegistry {
+
+    public static final String TYPE_DELAY = "delay";
+    public static final String TYPE_SPAWN = "spawn";
+    public static final String TYPE_RANDOM = "random";
+
+    /**
+     * Create a new Command instance of a type
+     */
+    public static interface Creator {
+        /**
+         * @param value    the number value of the node, e.g. the during of DelayCommand
+         * @param argument the text argument of the node, can be null
+         * @param children the children Commands of the node, empty if there is no children
+         * @return the new Command instance
+         */
+        public Command create(long value, String argument, Command[] children);
+    }
+
+    /**
+     * Parse the weights argument of "random", e.g. "1,2.5,1"
+     *
+     * @param argument the comma separated weights
+     * @return the weights
+     * @throws NumberFormatException if a weight is not a number
+     */
+    static double[] parseWeights(String argument) {
+        String[] parts = argument.split(",");
+        double[] weights = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Double.parseDouble(parts[i].trim());
+        }
+        return weights;
+    }
+
+    private final Map<String, Creator> mCreatorMap = new HashMap<String, Creator>();
+
+    public CommandRegistry() {
+        register(TYPE_DELAY, new Creator() {
+            @Override
+            public Command create(long value, String argument, Command[] children) {
+                return new DelayCommand(value);
+            }
+        });
+        register(TYPE_SPAWN, new Creator() {
+            @Override
+            public Command create(long value, String argument, Command[] children) {
+                return new SpawnCommand(children)
+                        .setCompleteType(SpawnCommand.CompleteType.values()[(int) value]);
+            }
+        });
+        register(TYPE_RANDOM, new Creator() {
+            @Override
+            public Command create(long value, String argument, Command[] children) {
+                RandomCommand command = new RandomCommand(children);
+                if (argument != null) {
+                    command.setWeights(parseWeights(argument));
+                }
+                return command;
+            }
+        });
+    }
+
+    /**
+     * Register a Command type
+     *
+     * @param type    the type name used in CommandPlan
+     * @param creator the creator of the type
+     * @return this registry
+     */
+    public CommandRegistry register(String type, Creator creator) {
+        if (type == null || creator == null) {
+            throw new IllegalArgumentException("type and creator can not be null");
+        }
+        synchronized (mCreatorMap) {
+            mCreatorMap.put(type, creator);
+        }
+        return this;
+    }
+
+    /**
+     * Get the creator of a type
+     *
+     * @param type the type name
+     * @return the creator, null if the type is not registered
+     */
+    public Creator get(String type) {
+        synchronized (mCreatorMap) {
+            return mCreatorMap.get(type);
+        }
+    }
+}
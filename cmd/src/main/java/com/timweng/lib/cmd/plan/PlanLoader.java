@@ -0,0 +1,227 @@
+package com.timweng.lib.cmd.plan;
+
+import com.timweng.lib.cmd.Debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Load CommandPlan from the binary format, the parsed plans are cached by the hash of their content, so loading the
+ * same bytes again skips parsing and validation.
+ * <p>
+ * With setCacheDir(), the result of the validation (the create order) is also kept in a file named by the hash, so a
+ * later launch loading the same bytes only decodes them.
+ */
+public class PlanLoader {
+    private static final String TAG = "PlanLoader";
+
+    private static final int DEFAULT_CACHE_SIZE = 16;
+    private static final int RECORD_MAGIC = 0x43445631; // "CDV1"
+    private static final String RECORD_SUFFIX = ".cdv";
+
+    private final CommandRegistry mRegistry;
+    private final Map<String, CommandPlan> mCache;
+
+    private volatile File mCacheDir = null;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mDiskHitCount = 0;
+
+    public PlanLoader(CommandRegistry registry) {
+        this(registry, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param registry  the registry the types are resolved from
+     * @param cacheSize the max count of cached plans, the least recently used one is dropped first
+     */
+    public PlanLoader(CommandRegistry registry, final int cacheSize) {
+        mRegistry = registry;
+        mCache = new LinkedHashMap<String, CommandPlan>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CommandPlan> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Keep the validation results in a directory, so they survive the process
+     *
+     * @param dir the directory, e.g. under Context.getCacheDir(), null to keep them in memory only
+     */
+    public void setCacheDir(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Debug.logD(TAG, "setCacheDir() failed: " + dir);
+            return;
+        }
+        mCacheDir = dir;
+    }
+
+    /**
+     * Load a plan
+     *
+     * @param data the encoded plan
+     * @return the plan, null if the data is not a valid plan
+     */
+    public CommandPlan load(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        String key = hash(data);
+        synchronized (mCache) {
+            CommandPlan plan = mCache.get(key);
+            if (plan != null) {
+                mHitCount++;
+                return plan;
+            }
+            mMissCount++;
+        }
+
+        File cacheDir = mCacheDir;
+        CommandPlan plan = cacheDir == null ? null : loadValidated(cacheDir, key, data);
+        if (plan == null) {
+            try {
+                plan = CommandPlan.parse(data, mRegistry);
+            } catch (IOException e) {
+                Debug.logE(TAG, "load() failed", e);
+                return null;
+            }
+            if (cacheDir != null) {
+                saveValidated(cacheDir, key, plan);
+            }
+        }
+        synchronized (mCache) {
+            mCache.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Drop all cached plans, e.g. the registry is changed
+     */
+    public void clearCache() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    public int getHitCount() {
+        synchronized (mCache) {
+            return mHitCount;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (mCache) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * Get the count of loads which missed the memory cache but found the validation result in the cache directory
+     *
+     * @return the count
+     */
+    public int getDiskHitCount() {
+        synchronized (mCache) {
+            return mDiskHitCount;
+        }
+    }
+
+    private CommandPlan loadValidated(File dir, String key, byte[] data) {
+        File file = new File(dir, key + RECORD_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != RECORD_MAGIC) {
+                throw new IOException("not a validation record");
+            }
+            int count = in.readInt();
+            if (count < 0 || count > data.length) {
+                throw new IOException("invalid count: " + count);
+            }
+            int[] createOrder = new int[count];
+            for (int i = 0; i < count; i++) {
+                createOrder[i] = in.readInt();
+            }
+            CommandPlan plan = CommandPlan.parseValidated(data, mRegistry, createOrder);
+            synchronized (mCache) {
+                mDiskHitCount++;
+            }
+            return plan;
+        } catch (IOException e) {
+            Debug.logE(TAG, "loadValidated() failed: " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void saveValidated(File dir, String key, CommandPlan plan) {
+        File file = new File(dir, key + RECORD_SUFFIX);
+        File tmpFile = new File(dir, key + RECORD_SUFFIX + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            int[] createOrder = plan.getCreateOrder();
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(createOrder.length);
+            for (int node : createOrder) {
+                out.writeInt(node);
+            }
+            out.close();
+            out = null;
+            // The record appears complete or not at all
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Debug.logE(TAG, "saveValidated() failed: " + file, e);
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(data);
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package com.timweng.lib.cmd.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Connect to a WorkerServer in the same process through pipes, the calls go through the same frames as
+ * LocalSocketTransport, for tests and for devices where a worker process is not wanted
+ */
+public class InProcessTransport implements WorkerTransport {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final WorkerServer[] mServers;
+
+    /**
+     * @param servers the workers, the connection of index i goes to the server of index i % servers.length
+     */
+    public InProcessTransport(WorkerServer... servers) {
+        if (servers == null || servers.length == 0) {
+            throw new IllegalArgumentException("need at least one server");
+        }
+        mServers = servers.clone();
+    }
+
+    @Override
+    public Channel connect(int index) throws IOException {
+        final PipedInputStream clientIn = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+        final PipedInputStream serverIn = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        mServers[index % mServers.length].serve(serverIn, serverOut, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                serverOut.close();
+                serverIn.close();
+            }
+        });
+        return new Channel() {
+            @Override
+            public InputStream getInputStream() {
+                return clientIn;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return clientOut;
+            }
+
+            @Override
+            public void close() throws IOException {
+                clientOut.close();
+                clientIn.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package com.timweng.lib.cmd.remote;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connect to a WorkerServer listening on a Unix-domain socket, e.g. in a Service of another process
+ */
+public class LocalSocketTransport implements WorkerTransport {
+
+    private final String[] mNames;
+
+    /**
+     * @param names the socket names given to WorkerServer.listen(), the connection of index i goes to the name of
+     *              index i % names.length, so every worker process can listen on its own name
+     */
+    public LocalSocketTransport(String... names) {
+        if (names == null || names.length == 0) {
+            throw new IllegalArgumentException("need at least one socket name");
+        }
+        mNames = names.clone();
+    }
+
+    @Override
+    public Channel connect(int index) throws IOException {
+        final LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(mNames[index % mNames.length]));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Channel() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+}
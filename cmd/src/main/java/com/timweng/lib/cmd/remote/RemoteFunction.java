@@ -0,0 +1,15 @@
+package com.timweng.lib.cmd.remote;
+
+import android.os.Bundle;
+
+/**
+ * The work of a remote type, run by WorkerServer in the worker process
+ */
+public interface RemoteFunction {
+    /**
+     * @param input the bundle from the calling Command, can be null
+     * @return the bundle for the next Command
+     * @throws Exception the call get error, the message is sent back to the caller
+     */
+    public Bundle apply(Bundle input) throws Exception;
+}
@@ -0,0 +1,80 @@
+package com.timweng.lib.cmd.remote;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The frames between WorkerPool and WorkerServer, the requests and responses carry the request ID so many calls can
+ * be in flight on one connection and be answered in any order.
+ * <p>
+ * Request: id(long), type(UTF), bundle. Response: id(long), status(byte), bundle or error message(UTF).
+ * A bundle is its Parcel bytes with the length in front, -1 means null.
+ */
+final class WireFormat {
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    private static final int MAX_BUNDLE_SIZE = 16 * 1024 * 1024;
+
+    private WireFormat() {
+    }
+
+    static void writeRequest(DataOutputStream out, long id, String type, Bundle input) throws IOException {
+        out.writeLong(id);
+        out.writeUTF(type);
+        writeBundle(out, input);
+    }
+
+    static void writeResult(DataOutputStream out, long id, Bundle result) throws IOException {
+        out.writeLong(id);
+        out.writeByte(STATUS_OK);
+        writeBundle(out, result);
+    }
+
+    static void writeError(DataOutputStream out, long id, String message) throws IOException {
+        out.writeLong(id);
+        out.writeByte(STATUS_ERROR);
+        out.writeUTF(message == null ? "" : message);
+    }
+
+    static void writeBundle(DataOutputStream out, Bundle bundle) throws IOException {
+        if (bundle == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            byte[] data = parcel.marshall();
+            out.writeInt(data.length);
+            out.write(data);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static Bundle readBundle(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_BUNDLE_SIZE) {
+            throw new IOException("bundle too large: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(WireFormat.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.timweng.lib.cmd.remote;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connections to the workers of remote Commands (see FunctionCommand.setRemote()). A call goes to the healthy
+ * connection with the fewest calls in flight.
+ * <p>
+ * Every connection pipelines its calls, a call is sent without waiting for the ones before it and the results are
+ * matched by request ID. The calls queued together are written with one flush. A connection that fails fails its
+ * calls, and is connected again on a later call after a backoff which grows with the failures in a row.
+ * <p>
+ * Connecting is done on the thread of the connection, submit() never blocks, the calls submitted meanwhile are sent
+ * once it's connected. A call without result after the call timeout fails, and a connection which returns nothing
+ * for a whole call timeout is taken as hung and connected again.
+ */
+public class WorkerPool {
+
+    private static final String TAG = "WorkerPool";
+
+    // Calls written before one flush at most
+    private static final int MAX_BATCH = 32;
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    public static final long DEFAULT_CALL_TIMEOUT_MILLIS = 60000;
+    private static final long MIN_WATCH_INTERVAL_MILLIS = 10;
+
+    /**
+     * The result of a call, called on a thread of the pool
+     */
+    public static interface Callback {
+        public void onResult(Bundle result);
+
+        public void onError(String message);
+    }
+
+    /**
+     * A call in flight
+     */
+    public static final class Call {
+        private final long mId;
+        private final String mType;
+        private final Bundle mInput;
+        private final Callback mCallback;
+        private final long mSubmitTime;
+        private final AtomicBoolean mIsDone = new AtomicBoolean(false);
+
+        Call(long id, String type, Bundle input, Callback callback) {
+            mId = id;
+            mType = type;
+            mInput = input;
+            mCallback = callback;
+            mSubmitTime = uptimeMillis();
+        }
+
+        /**
+         * Drop the result, the worker may still run the call
+         */
+        public void cancel() {
+            mIsDone.set(true);
+        }
+
+        void complete(Bundle result) {
+            if (mIsDone.compareAndSet(false, true)) {
+                mCallback.onResult(result);
+            }
+        }
+
+        void fail(String message) {
+            if (mIsDone.compareAndSet(false, true)) {
+                mCallback.onError(message);
+            }
+        }
+    }
+
+    private final WorkerTransport mTransport;
+    private final Connection[] mConnections;
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private volatile long mCallTimeout = DEFAULT_CALL_TIMEOUT_MILLIS;
+    private final AtomicBoolean mIsWatching = new AtomicBoolean(false);
+    private volatile Thread mWatchThread = null;
+    private volatile boolean mIsClosed = false;
+
+    /**
+     * @param transport       how to connect to the workers
+     * @param connectionCount the count of connections, e.g. the count of worker processes
+     */
+    public WorkerPool(WorkerTransport transport, int connectionCount) {
+        if (transport == null || connectionCount <= 0) {
+            throw new IllegalArgumentException("need a transport and at least one connection");
+        }
+        mTransport = transport;
+        mConnections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            mConnections[i] = new Connection(i);
+        }
+    }
+
+    /**
+     * Send a call to a worker
+     *
+     * @param type     the type ID registered to WorkerServer
+     * @param input    the input bundle, can be null
+     * @param callback get the result, it's called with an error at once if there is no healthy worker
+     * @return the call, cancel() it to drop the result
+     */
+    public Call submit(String type, Bundle input, Callback callback) {
+        Call call = new Call(mNextId.getAndIncrement(), type, input, callback);
+        if (mIsClosed) {
+            call.fail("WorkerPool is closed");
+            return call;
+        }
+        startWatch();
+        Session best = null;
+        for (Connection connection : mConnections) {
+            Session session = connection.getSession();
+            if (session != null && (best == null || isBetter(session, best))) {
+                best = session;
+            }
+        }
+        if (best == null || !best.send(call)) {
+            call.fail("no healthy worker");
+        }
+        return call;
+    }
+
+    private static boolean isBetter(Session session, Session best) {
+        if (session.mIsConnected != best.mIsConnected) {
+            return session.mIsConnected;
+        }
+        return session.mInFlightMap.size() < best.mInFlightMap.size();
+    }
+
+    /**
+     * Set how long a call waits for the result, the call fails after it
+     *
+     * @param timeoutMillis the timeout in milliseconds, 0 means no timeout, DEFAULT_CALL_TIMEOUT_MILLIS by default
+     */
+    public void setCallTimeout(long timeoutMillis) {
+        mCallTimeout = timeoutMillis > 0 ? timeoutMillis : 0;
+        Thread watchThread = mWatchThread;
+        if (watchThread != null) {
+            // Wake it up to use the new interval
+            watchThread.interrupt();
+        }
+    }
+
+    /**
+     * Get the count of connections which are connected
+     *
+     * @return the healthy count
+     */
+    public int getHealthyCount() {
+        int count = 0;
+        for (Connection connection : mConnections) {
+            Session session = connection.mSession;
+            if (session != null && session.mIsConnected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the count of calls waiting for the result
+     *
+     * @return the in-flight count
+     */
+    public int getInFlightCount() {
+        int count = 0;
+        for (Connection connection : mConnections) {
+            Session session = connection.mSession;
+            if (session != null) {
+                count += session.mInFlightMap.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close every connection, the calls in flight fail
+     */
+    public void close() {
+        mIsClosed = true;
+        Thread watchThread = mWatchThread;
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        for (Connection connection : mConnections) {
+            connection.close();
+        }
+    }
+
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Start the thread failing the calls which are timed out, on the first call
+     */
+    private void startWatch() {
+        if (!mIsWatching.compareAndSet(false, true)) {
+            return;
+        }
+        Thread watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "WorkerPool-watch");
+        watchThread.setDaemon(true);
+        mWatchThread = watchThread;
+        watchThread.start();
+    }
+
+    private void watch() {
+        while (!mIsClosed) {
+            long timeout = mCallTimeout;
+            try {
+                Thread.sleep(timeout > 0 ? Math.max(timeout / 4, MIN_WATCH_INTERVAL_MILLIS) : MAX_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            timeout = mCallTimeout;
+            if (timeout <= 0) {
+                continue;
+            }
+            long now = uptimeMillis();
+            for (Connection connection : mConnections) {
+                Session session = connection.mSession;
+                if (session != null) {
+                    session.checkTimeout(now, timeout);
+                }
+            }
+        }
+        Debug.logD(TAG, "watch() stopped");
+    }
+
+    /**
+     * One connection slot, it keeps the health state over the Sessions it opens
+     */
+    private class Connection {
+        private final int mIndex;
+        private volatile Session mSession = null;
+        private int mFailureCount = 0;
+        private long mRetryTime = 0;
+
+        Connection(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * @return the connected or connecting Session, null if it is in the backoff
+         */
+        synchronized Session getSession() {
+            if (mSession != null || mIsClosed) {
+                return mSession;
+            }
+            if (uptimeMillis() < mRetryTime) {
+                return null;
+            }
+            Session session = new Session(this);
+            mSession = session;
+            session.start();
+            return session;
+        }
+
+        synchronized void onSessionFailed(Session session) {
+            if (mSession != session) {
+                return;
+            }
+            mSession = null;
+            onFailure(uptimeMillis());
+        }
+
+        private void onFailure(long now) {
+            mFailureCount++;
+            long backoff = BASE_BACKOFF_MILLIS << Math.min(mFailureCount - 1, 16);
+            mRetryTime = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+        }
+
+        synchronized void onSessionHealthy() {
+            mFailureCount = 0;
+        }
+
+        void close() {
+            Session session;
+            synchronized (this) {
+                session = mSession;
+                mSession = null;
+            }
+            if (session != null) {
+                session.close("WorkerPool is closed");
+            }
+        }
+    }
+
+    /**
+     * One channel, a thread connects and writes the queued calls and a thread reads the results
+     */
+    private class Session {
+        private final Connection mConnection;
+        private WorkerTransport.Channel mChannel = null;
+        private DataInputStream mIn;
+        private DataOutputStream mOut;
+        private final LinkedBlockingQueue<Call> mSendQueue = new LinkedBlockingQueue<Call>();
+        private final ConcurrentHashMap<Long, Call> mInFlightMap = new ConcurrentHashMap<Long, Call>();
+        private final Thread mReadThread;
+        private final Thread mWriteThread;
+        private volatile boolean mIsConnected = false;
+        // The last time the worker answered, or the time connecting started
+        private volatile long mLastReadTime = uptimeMillis();
+        private volatile boolean mIsClosed = false;
+
+        Session(Connection connection) {
+            mConnection = connection;
+            mReadThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "WorkerPool-read-" + connection.mIndex);
+            mWriteThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "WorkerPool-write-" + connection.mIndex);
+            mReadThread.setDaemon(true);
+            mWriteThread.setDaemon(true);
+        }
+
+        void start() {
+            mWriteThread.start();
+        }
+
+        boolean send(Call call) {
+            mInFlightMap.put(call.mId, call);
+            mSendQueue.add(call);
+            if (mIsClosed) {
+                // close() may have failed the calls before this one was added
+                mInFlightMap.remove(call.mId);
+                return false;
+            }
+            return true;
+        }
+
+        private void connect() throws IOException {
+            WorkerTransport.Channel channel = mTransport.connect(mConnection.mIndex);
+            synchronized (this) {
+                if (mIsClosed) {
+                    channel.close();
+                    return;
+                }
+                mChannel = channel;
+            }
+            mIn = new DataInputStream(new BufferedInputStream(channel.getInputStream()));
+            mOut = new DataOutputStream(new BufferedOutputStream(channel.getOutputStream()));
+            mLastReadTime = uptimeMillis();
+            mIsConnected = true;
+            Debug.logD(TAG, "connected #" + mConnection.mIndex);
+            mReadThread.start();
+        }
+
+        private void write() {
+            try {
+                connect();
+            } catch (IOException e) {
+                Debug.logE(TAG, "connect #" + mConnection.mIndex + " failed", e);
+                mConnection.onSessionFailed(this);
+                close("no healthy worker");
+                return;
+            }
+            List<Call> batch = new ArrayList<Call>(MAX_BATCH);
+            try {
+                while (!mIsClosed) {
+                    batch.add(mSendQueue.take());
+                    mSendQueue.drainTo(batch, MAX_BATCH - 1);
+                    for (Call call : batch) {
+                        if (!call.mIsDone.get()) {
+                            WireFormat.writeRequest(mOut, call.mId, call.mType, call.mInput);
+                        } else {
+                            mInFlightMap.remove(call.mId);
+                        }
+                    }
+                    mOut.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Debug.logD(TAG, "write() stopped");
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void read() {
+            try {
+                while (!mIsClosed) {
+                    long id = mIn.readLong();
+                    byte status = mIn.readByte();
+                    Call call = mInFlightMap.remove(id);
+                    mLastReadTime = uptimeMillis();
+                    if (status == WireFormat.STATUS_OK) {
+                        Bundle result = WireFormat.readBundle(mIn);
+                        if (call != null) {
+                            call.complete(result);
+                        }
+                    } else {
+                        String message = mIn.readUTF();
+                        if (call != null) {
+                            call.fail(message);
+                        }
+                    }
+                    mConnection.onSessionHealthy();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Fail the calls waiting longer than the timeout, and the Session if the worker answered nothing meanwhile
+         */
+        void checkTimeout(long now, long timeout) {
+            boolean isTimedOut = false;
+            for (Call call : mInFlightMap.values()) {
+                if (now - call.mSubmitTime >= timeout && mInFlightMap.remove(call.mId, call)) {
+                    call.fail("call timeout");
+                    isTimedOut = true;
+                }
+            }
+            if (isTimedOut && now - mLastReadTime >= timeout) {
+                fail(new IOException("worker #" + mConnection.mIndex + " is not responding"));
+            }
+        }
+
+        private void fail(IOException e) {
+            if (mIsClosed) {
+                return;
+            }
+            Debug.logE(TAG, "connection #" + mConnection.mIndex + " failed", e);
+            mConnection.onSessionFailed(this);
+            close("worker connection lost");
+        }
+
+        void close(String message) {
+            synchronized (this) {
+                if (mIsClosed) {
+                    return;
+                }
+                mIsClosed = true;
+            }
+            mWriteThread.interrupt();
+            WorkerTransport.Channel channel;
+            synchronized (this) {
+                channel = mChannel;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Debug.logE(TAG, "close() failed", e);
+                }
+            }
+            for (Long id : new ArrayList<Long>(mInFlightMap.keySet())) {
+                Call call = mInFlightMap.remove(id);
+                if (call != null) {
+                    call.fail(message);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.timweng.lib.cmd.remote;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Bundle;
+import android.os.Process;
+
+import com.timweng.lib.cmd.Debug;
+import com.timweng.lib.cmd.unit.FunctionCommand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The worker side of remote Commands, it runs the registered types for the WorkerPools connected to it. Host it in a
+ * Service declared with its own android:process and call listen(), so the heavy work has its own process and heap.
+ * <p>
+ * The calls of one connection run at the same time on the worker threads, and the results are written back in the
+ * order they are done, several in one write when they are done together.
+ * <p>
+ * Any app can reach a socket name, so listen() only serves the peers of the same uid (the processes of this app),
+ * add more by allowUid().
+ */
+public class WorkerServer {
+
+    private static final String TAG = "WorkerServer";
+
+    // Results written before one flush at most
+    private static final int MAX_BATCH = 32;
+
+    private final Map<String, RemoteFunction> mFunctionMap = new HashMap<String, RemoteFunction>();
+    private final Set<Session> mSessions = new HashSet<Session>();
+    // The uids besides the own one which listen() serves
+    private final Set<Integer> mAllowedUids = new HashSet<Integer>();
+    private final ExecutorService mExecutor;
+    private LocalServerSocket mServerSocket = null;
+    private volatile boolean mIsClosed = false;
+
+    public WorkerServer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount the count of calls run at the same time
+     */
+    public WorkerServer(int threadCount) {
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WorkerServer-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Let the processes of another uid connect by listen(), e.g. a shared-uid app
+     *
+     * @param uid the Linux uid of the peer
+     * @return this server
+     */
+    public WorkerServer allowUid(int uid) {
+        synchronized (mAllowedUids) {
+            mAllowedUids.add(uid);
+        }
+        return this;
+    }
+
+    /**
+     * Register a remote type
+     *
+     * @param type     the type ID the callers send
+     * @param function the work of the type
+     * @return this server
+     */
+    public WorkerServer register(String type, RemoteFunction function) {
+        if (type == null || function == null) {
+            throw new IllegalArgumentException("type and function can not be null");
+        }
+        synchronized (mFunctionMap) {
+            mFunctionMap.put(type, function);
+        }
+        return this;
+    }
+
+    /**
+     * Register a FunctionCommand class for FunctionCommand.setRemote(), every call runs function() of a new instance,
+     * so the class needs a public constructor without parameters
+     *
+     * @param type the FunctionCommand class
+     * @return this server
+     */
+    public WorkerServer register(final Class<? extends FunctionCommand> type) {
+        return register(type.getName(), new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) throws Exception {
+                return type.getDeclaredConstructor().newInstance().function(input);
+            }
+        });
+    }
+
+    /**
+     * Accept the WorkerPools connecting by LocalSocketTransport
+     *
+     * @param name the socket name
+     * @throws IOException if the socket can not be created
+     */
+    public void listen(String name) throws IOException {
+        final LocalServerSocket serverSocket = new LocalServerSocket(name);
+        synchronized (mSessions) {
+            mServerSocket = serverSocket;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mIsClosed) {
+                    try {
+                        final LocalSocket socket = serverSocket.accept();
+                        if (!isAllowed(socket)) {
+                            // Nothing is read from a peer which is not allowed
+                            closeQuietly(socket);
+                            continue;
+                        }
+                        serve(socket.getInputStream(), socket.getOutputStream(), socket);
+                    } catch (IOException e) {
+                        if (!mIsClosed) {
+                            Debug.logE(TAG, "listen() failed", e);
+                        }
+                        return;
+                    }
+                }
+            }
+        }, "WorkerServer-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean isAllowed(LocalSocket socket) {
+        int uid;
+        try {
+            Credentials credentials = socket.getPeerCredentials();
+            if (credentials == null) {
+                Debug.logD(TAG, "listen() rejected a peer without credentials");
+                return false;
+            }
+            uid = credentials.getUid();
+        } catch (IOException e) {
+            Debug.logE(TAG, "listen() can not get the peer credentials", e);
+            return false;
+        }
+        if (uid == Process.myUid()) {
+            return true;
+        }
+        synchronized (mAllowedUids) {
+            if (mAllowedUids.contains(uid)) {
+                return true;
+            }
+        }
+        Debug.logD(TAG, "listen() rejected uid " + uid);
+        return false;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Debug.logE(TAG, "close() failed", e);
+        }
+    }
+
+    /**
+     * Serve one connection until it's closed
+     *
+     * @param in      the input of the connection
+     * @param out     the output of the connection
+     * @param channel closed when the connection ends
+     */
+    public void serve(InputStream in, OutputStream out, Closeable channel) {
+        Session session = new Session(in, out, channel);
+        synchronized (mSessions) {
+            if (mIsClosed) {
+                session.close();
+                return;
+            }
+            mSessions.add(session);
+        }
+        session.start();
+    }
+
+    /**
+     * Stop listening and close every connection
+     */
+    public void close() {
+        List<Session> sessions;
+        synchronized (mSessions) {
+            mIsClosed = true;
+            if (mServerSocket != null) {
+                try {
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    Debug.logE(TAG, "close() failed", e);
+                }
+                mServerSocket = null;
+            }
+            sessions = new ArrayList<Session>(mSessions);
+            mSessions.clear();
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private RemoteFunction getFunction(String type) {
+        synchronized (mFunctionMap) {
+            return mFunctionMap.get(type);
+        }
+    }
+
+    private static class Response {
+        final long mId;
+        final Bundle mResult;
+        final String mError;
+
+        Response(long id, Bundle result, String error) {
+            mId = id;
+            mResult = result;
+            mError = error;
+        }
+    }
+
+    private class Session {
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+        private final Closeable mChannel;
+        private final LinkedBlockingQueue<Response> mResponseQueue = new LinkedBlockingQueue<Response>();
+        private final Thread mReadThread;
+        private final Thread mWriteThread;
+        private final AtomicBoolean mIsClosed = new AtomicBoolean(false);
+
+        Session(InputStream in, OutputStream out, Closeable channel) {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mChannel = channel;
+            mReadThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "WorkerServer-read");
+            mWriteThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "WorkerServer-write");
+            mReadThread.setDaemon(true);
+            mWriteThread.setDaemon(true);
+        }
+
+        void start() {
+            mReadThread.start();
+            mWriteThread.start();
+        }
+
+        private void read() {
+            try {
+                while (!mIsClosed.get()) {
+                    final long id = mIn.readLong();
+                    final String type = mIn.readUTF();
+                    final Bundle input = WireFormat.readBundle(mIn);
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mResponseQueue.add(call(id, type, input));
+                        }
+                    });
+                }
+            } catch (EOFException e) {
+                Debug.logD(TAG, "read() connection closed");
+            } catch (Exception e) {
+                if (!mIsClosed.get()) {
+                    Debug.logE(TAG, "read() failed", e);
+                }
+            }
+            close();
+        }
+
+        private Response call(long id, String type, Bundle input) {
+            RemoteFunction function = getFunction(type);
+            if (function == null) {
+                return new Response(id, null, "unknown type: " + type);
+            }
+            try {
+                return new Response(id, function.apply(input), null);
+            } catch (Exception e) {
+                Debug.logE(TAG, "call() failed: " + type, e);
+                return new Response(id, null, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private void write() {
+            List<Response> batch = new ArrayList<Response>(MAX_BATCH);
+            try {
+                while (!mIsClosed.get()) {
+                    batch.add(mResponseQueue.take());
+                    mResponseQueue.drainTo(batch, MAX_BATCH - 1);
+                    for (Response response : batch) {
+                        if (response.mError == null) {
+                            WireFormat.writeResult(mOut, response.mId, response.mResult);
+                        } else {
+                            WireFormat.writeError(mOut, response.mId, response.mError);
+                        }
+                    }
+                    mOut.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Debug.logD(TAG, "write() stopped");
+            } catch (IOException e) {
+                if (!mIsClosed.get()) {
+                    Debug.logE(TAG, "write() failed", e);
+                }
+                close();
+            }
+        }
+
+        void close() {
+            if (!mIsClosed.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (mSessions) {
+                mSessions.remove(this);
+            }
+            mWriteThread.interrupt();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Debug.logE(TAG, "close() failed", e);
+            }
+        }
+    }
+}
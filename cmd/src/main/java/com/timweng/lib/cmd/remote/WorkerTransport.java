@@ -0,0 +1,32 @@
+package com.timweng.lib.cmd.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How WorkerPool connects to a worker, see LocalSocketTransport and InProcessTransport
+ */
+public interface WorkerTransport {
+
+    /**
+     * A connection to a worker
+     */
+    public static interface Channel extends Closeable {
+        public InputStream getInputStream() throws IOException;
+
+        public OutputStream getOutputStream() throws IOException;
+    }
+
+    /**
+     * Open a new connection, called again after a connection is lost. It's called on a thread of WorkerPool, so it
+     * can block until the worker is reached.
+     *
+     * @param index the index of the connection in WorkerPool, from 0 to connectionCount - 1, e.g. to choose the
+     *              worker process of each connection
+     * @return the connection
+     * @throws IOException if the worker can not be reached
+     */
+    public Channel connect(int index) throws IOException;
+}
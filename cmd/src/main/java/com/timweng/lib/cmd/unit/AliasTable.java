@@ -0,0 +1,86 @@
+package com.timweng.lib.cmd.unit;
+
+import com.timweng.lib.cmd.SplitRandom;
+
+/**
+ * Weighted selection in O(1) by the alias method (Vose), the table is built once in O(n)
+ */
+public class AliasTable {
+
+    private final double[] mProbabilities;
+    private final int[] mAliases;
+
+    /**
+     * @param weights the weights, can not be negative and the sum must larger than 0
+     */
+    public AliasTable(double... weights) {
+        int n = weights == null ? 0 : weights.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("weights can not be empty");
+        }
+        double sum = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("invalid weight: " + weight);
+            }
+            sum += weight;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("the sum of weights must larger than 0");
+        }
+
+        mProbabilities = new double[n];
+        mAliases = new int[n];
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1) {
+                small[smallSize++] = i;
+            } else {
+                large[largeSize++] = i;
+            }
+        }
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            mProbabilities[less] = scaled[less];
+            mAliases[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallSize++] = more;
+            } else {
+                large[largeSize++] = more;
+            }
+        }
+        // The rest are 1 apart from rounding errors
+        while (largeSize > 0) {
+            int index = large[--largeSize];
+            mProbabilities[index] = 1;
+            mAliases[index] = index;
+        }
+        while (smallSize > 0) {
+            int index = small[--smallSize];
+            mProbabilities[index] = 1;
+            mAliases[index] = index;
+        }
+    }
+
+    public int size() {
+        return mProbabilities.length;
+    }
+
+    /**
+     * Select an index
+     *
+     * @param random the generator
+     * @return the selected index, the chance is proportional to its weight
+     */
+    public int sample(SplitRandom random) {
+        int column = random.nextInt(mProbabilities.length);
+        return random.nextDouble() < mProbabilities[column] ? column : mAliases[column];
+    }
+}
@@ -0,0 +1,236 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An Command written as blocking code, run() can sleep and wait on I/O instead of keeping its state in fields and
+ * Handler callbacks. It runs on a virtual thread when the runtime has them (JVM 21+), otherwise on a shared cached
+ * thread pool.
+ * <p>
+ * pause() parks the thread at the next Context.checkPaused() or Context.sleep(), resume() unparks it, stop()
+ * interrupts it.
+ */
+public abstract class BlockingCommand extends Command {
+
+    private static final String TAG = "BlockingCommand";
+
+    public static final String KEY_ERROR = "BlockingCommand.error";
+
+    /**
+     * The running state given to run()
+     */
+    public static class Context {
+        private final Bundle mInputBundle;
+        private volatile Thread mThread;
+        private volatile boolean mIsPaused = false;
+        private volatile boolean mIsStopped = false;
+
+        Context(Bundle inputBundle) {
+            mInputBundle = inputBundle;
+        }
+
+        /**
+         * @return the bundle from last Command, need to check null or not
+         */
+        public Bundle getInputBundle() {
+            return mInputBundle;
+        }
+
+        public boolean isStopped() {
+            return mIsStopped;
+        }
+
+        /**
+         * Wait while the Command is paused
+         *
+         * @throws InterruptedException if the Command is stopped
+         */
+        public void checkPaused() throws InterruptedException {
+            checkStopped();
+            while (mIsPaused) {
+                LockSupport.park(this);
+                checkStopped();
+            }
+        }
+
+        /**
+         * Sleep, the time the Command is paused does not count
+         *
+         * @param millis the time to sleep in milliseconds
+         * @throws InterruptedException if the Command is stopped
+         */
+        public void sleep(long millis) throws InterruptedException {
+            long remainNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (remainNanos > 0) {
+                checkPaused();
+                long startTime = System.nanoTime();
+                LockSupport.parkNanos(this, remainNanos);
+                remainNanos -= System.nanoTime() - startTime;
+            }
+            checkPaused();
+        }
+
+        private void checkStopped() throws InterruptedException {
+            if (mIsStopped || Thread.interrupted()) {
+                throw new InterruptedException("Command is stopped");
+            }
+        }
+
+        void pause() {
+            mIsPaused = true;
+            LockSupport.unpark(mThread);
+        }
+
+        void resume() {
+            mIsPaused = false;
+            LockSupport.unpark(mThread);
+        }
+
+        void stop() {
+            mIsStopped = true;
+            Thread thread = mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private volatile Context mContext;
+
+    /**
+     * Run the Command on its own thread
+     *
+     * @param context the running state, call context.checkPaused() where the Command can be paused
+     * @return the bundle for the next Command
+     * @throws Exception the Command get error, it's reported by onError() with the message in KEY_ERROR
+     */
+    public abstract Bundle run(Context context) throws Exception;
+
+    @Override
+    public boolean start(Handler handler, Bundle bundle) {
+        if (!super.start(handler, bundle)) {
+            return false;
+        }
+        final Context context = new Context(bundle);
+        mContext = context;
+        ExecutorHolder.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute(context);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (!super.stop()) {
+            return false;
+        }
+        Context context = mContext;
+        mContext = null;
+        if (context != null) {
+            context.stop();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean pause() {
+        if (!super.pause()) {
+            return false;
+        }
+        Context context = mContext;
+        if (context != null) {
+            context.pause();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean resume() {
+        if (!super.resume()) {
+            return false;
+        }
+        Context context = mContext;
+        if (context != null) {
+            context.resume();
+        }
+        return true;
+    }
+
+    private void execute(Context context) {
+        // A pool thread can carry the interrupt of a late stop() of the last Command it ran
+        Thread.interrupted();
+        context.mThread = Thread.currentThread();
+        Bundle result = null;
+        Exception error = null;
+        try {
+            context.checkPaused();
+            result = run(context);
+            // The result is kept until resume() if the Command is paused now
+            context.checkPaused();
+        } catch (InterruptedException e) {
+            if (context.isStopped()) {
+                Debug.logD(TAG, "execute() stopped: " + this);
+                return;
+            }
+            error = e;
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            context.mThread = null;
+            // Clear the interrupt of stop(), the pool thread is reused
+            Thread.interrupted();
+        }
+
+        if (mContext != context || context.isStopped()) {
+            return;
+        }
+        mContext = null;
+        if (error == null) {
+            onComplete(result);
+        } else {
+            Debug.logE(TAG, "execute() failed: " + this, error);
+            Bundle errorBundle = new Bundle();
+            errorBundle.putString(KEY_ERROR, String.valueOf(error.getMessage()));
+            onError(errorBundle);
+        }
+    }
+
+    static class ExecutorHolder {
+        static final Executor EXECUTOR = createExecutor();
+
+        private static Executor createExecutor() {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (Exception e) {
+                // No virtual threads on this runtime
+            }
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BlockingCommand-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.SplitRandom;
+
+/**
+ * The base of the control-flow Commands, CommandDirector never starts them, it calls select() while advancing and
+ * continues with the selected Command directly, so routing costs no dispatch and changes no next Command.
+ */
+public abstract class ControlCommand extends Command {
+
+    /**
+     * Controlled by CommandDirector, select the Command to continue with
+     *
+     * @param bundle the bundle from last Command, need to check null or not
+     * @param random the generator of the run, only used on the thread calling select()
+     * @return the selected Command, null means continue with the next Command of this ControlCommand
+     */
+    public abstract Command select(Bundle bundle, SplitRandom random);
+
+    /**
+     * Get all the Commands select() can return
+     *
+     * @return the branches, can be null
+     */
+    public abstract Command[] getBranches();
+
+    @Override
+    public boolean isSynchronous() {
+        return true;
+    }
+
+    /**
+     * Only for the ControlCommand not played by CommandDirector, it completes and passes the bundle
+     */
+    @Override
+    public boolean start(Handler handler, Bundle bundle) {
+        if (!super.start(handler, bundle)) {
+            return false;
+        }
+        onComplete(bundle);
+        return true;
+    }
+}
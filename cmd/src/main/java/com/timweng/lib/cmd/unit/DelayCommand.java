@@ -7,6 +7,10 @@ import android.os.Handler;
 import com.timweng.lib.cmd.Command;
 import com.timweng.lib.cmd.Debug;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * An Action for delay
  */
@@ -15,8 +19,12 @@ public class DelayCommand extends Command {
     private static final String TAG = "DelayAction";
 
     private long mDelayDuring = 1000;
+    private long mTolerance = 0;
     private long mRemainDuring = 0;
     private long mStartTime = 0;
+    private boolean mIsRestored = false;
+    // The delay ended, its completion may still wait to be handled by CommandDirector
+    private volatile boolean mIsFired = false;
 
     public DelayCommand(long during) {
         setDelayDuring(during);
@@ -31,14 +39,34 @@ public class DelayCommand extends Command {
         return this;
     }
 
+    /**
+     * Let the delay end up to tolerance later, so the delays ending at about the same time wake the worker thread
+     * once. It works when the Command is started by CommandDirector.
+     *
+     * @param tolerance how much later the delay can end in milliseconds, 0 by default
+     * @return this Command
+     */
+    public DelayCommand setTolerance(long tolerance) {
+        if (tolerance >= 0) {
+            mTolerance = tolerance;
+        } else {
+            Debug.logD(TAG, "mTolerance can not be negative");
+        }
+        return this;
+    }
+
     @Override
     public boolean start(Handler handler, Bundle bundle) {
         if (!super.start(handler, bundle)) {
             return false;
         }
-        mRemainDuring = mDelayDuring;
+        if (!mIsRestored) {
+            mRemainDuring = mDelayDuring;
+        }
+        mIsRestored = false;
+        mIsFired = false;
         mStartTime = System.currentTimeMillis();
-        mHandler.postDelayed(mDelayRunnable, mRemainDuring);
+        postDelay(mRemainDuring);
         return true;
     }
 
@@ -47,7 +75,7 @@ public class DelayCommand extends Command {
         if (!super.stop()) {
             return false;
         }
-        mHandler.removeCallbacks(mDelayRunnable);
+        removeDelay();
         mRemainDuring = 0;
         return true;
     }
@@ -57,7 +85,7 @@ public class DelayCommand extends Command {
         if (!super.pause()) {
             return false;
         }
-        mHandler.removeCallbacks(mDelayRunnable);
+        removeDelay();
         long runDuring = System.currentTimeMillis() - mStartTime;
         mRemainDuring -= runDuring;
         Debug.logD(TAG, "start.mRemainDuring = " + mRemainDuring);
@@ -73,18 +101,56 @@ public class DelayCommand extends Command {
 
         if (mRemainDuring > 0) {
             mStartTime = System.currentTimeMillis();
-            mHandler.postDelayed(mDelayRunnable, mRemainDuring);
+            postDelay(mRemainDuring);
         } else {
             mHandler.post(mDelayRunnable);
         }
         return true;
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        long remain = mRemainDuring;
+        if (mIsFired) {
+            remain = 0;
+        } else if (isProcessing()) {
+            remain -= System.currentTimeMillis() - mStartTime;
+        } else if (!isPause() && !mIsRestored) {
+            // Not started yet, e.g. waiting for CommandDirector.resume(), the whole delay is remaining
+            remain = mDelayDuring;
+        }
+        out.writeLong(remain > 0 ? remain : 0);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        mRemainDuring = in.readLong();
+        mIsRestored = true;
+        mIsFired = false;
+        Debug.logD(TAG, "restoreState.mRemainDuring = " + mRemainDuring);
+    }
+
+    private void postDelay(long during) {
+        if (mTimer != null) {
+            mTimer.postDelayed(mDelayRunnable, during, mTolerance);
+        } else {
+            mHandler.postDelayed(mDelayRunnable, during);
+        }
+    }
+
+    private void removeDelay() {
+        if (mTimer != null) {
+            mTimer.removeCallbacks(mDelayRunnable);
+        }
+        mHandler.removeCallbacks(mDelayRunnable);
+    }
+
     private Runnable mDelayRunnable = new Runnable() {
 
         @Override
         public void run() {
             mRemainDuring = 0;
+            mIsFired = true;
             onComplete(null);
         }
     };
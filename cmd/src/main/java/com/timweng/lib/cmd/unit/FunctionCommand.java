@@ -4,6 +4,7 @@ import android.os.Bundle;
 import android.os.Handler;
 
 import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.remote.WorkerPool;
 
 /**
  * Created by Tim on 10/2/17.
@@ -11,15 +12,120 @@ import com.timweng.lib.cmd.Command;
 
 public abstract class FunctionCommand extends Command {
 
+    public static final String KEY_REMOTE_ERROR = "FunctionCommand.remoteError";
+
+    private WorkerPool mWorkerPool = null;
+    private volatile Object mCallToken = null;
+    private WorkerPool.Call mCall = null;
+    private volatile Runnable mPausedResult = null;
+
+    /**
+     * Run function() in a worker process instead, the input and output bundles are sent by Parcel, so they can only
+     * hold Parcelable data. The worker needs WorkerServer.register() of this class (see getRemoteType()).
+     *
+     * @param workerPool the connections to the workers, null to run function() here
+     * @return this Command
+     */
+    public FunctionCommand setRemote(WorkerPool workerPool) {
+        mWorkerPool = workerPool;
+        return this;
+    }
+
+    /**
+     * Get the type ID sent to the worker
+     *
+     * @return the class name by default
+     */
+    public String getRemoteType() {
+        return getClass().getName();
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return mWorkerPool == null;
+    }
+
     @Override
     public boolean start(Handler handler, Bundle bundle) {
         if (!super.start(handler, bundle)) {
             return false;
         }
+        if (mWorkerPool != null) {
+            startRemote(bundle);
+            return true;
+        }
         Bundle outputBundle = function(bundle);
         onComplete(outputBundle);
         return true;
     }
 
+    @Override
+    public boolean stop() {
+        if (!super.stop()) {
+            return false;
+        }
+        mCallToken = null;
+        mPausedResult = null;
+        if (mCall != null) {
+            mCall.cancel();
+            mCall = null;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean resume() {
+        if (!super.resume()) {
+            return false;
+        }
+        Runnable result = mPausedResult;
+        mPausedResult = null;
+        if (result != null) {
+            mHandler.post(result);
+        }
+        return true;
+    }
+
+    private void startRemote(Bundle bundle) {
+        final Object token = new Object();
+        mCallToken = token;
+        mCall = mWorkerPool.submit(getRemoteType(), bundle, new WorkerPool.Callback() {
+            @Override
+            public void onResult(final Bundle result) {
+                deliver(token, result, null);
+            }
+
+            @Override
+            public void onError(String message) {
+                Bundle errorBundle = new Bundle();
+                errorBundle.putString(KEY_REMOTE_ERROR, message);
+                deliver(token, null, errorBundle);
+            }
+        });
+    }
+
+    private void deliver(final Object token, final Bundle result, final Bundle errorBundle) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallToken != token) {
+                    return;
+                }
+                if (isPause()) {
+                    // Kept until resume()
+                    mPausedResult = this;
+                    return;
+                }
+                mCallToken = null;
+                mCall = null;
+                if (errorBundle == null) {
+                    onComplete(result);
+                } else {
+                    onError(errorBundle);
+                }
+            }
+        });
+    }
+
     public abstract Bundle function(Bundle inputBundle);
 }
@@ -0,0 +1,45 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.SplitRandom;
+
+/**
+ * An Command for selecting one of two Commands by a condition on the bundle from last Command
+ */
+public class IfCommand extends ControlCommand {
+
+    public static interface Condition {
+        /**
+         * @param bundle the bundle from last Command, need to check null or not
+         * @return true to select the then Command
+         */
+        public boolean test(Bundle bundle);
+    }
+
+    private Condition mCondition;
+    private Command mThenCommand;
+    private Command mElseCommand;
+
+    /**
+     * @param condition   the condition
+     * @param thenCommand the Command when the condition is true, null means continue with the next Command
+     * @param elseCommand the Command when the condition is false, null means continue with the next Command
+     */
+    public IfCommand(Condition condition, Command thenCommand, Command elseCommand) {
+        mCondition = condition;
+        mThenCommand = thenCommand;
+        mElseCommand = elseCommand;
+    }
+
+    @Override
+    public Command select(Bundle bundle, SplitRandom random) {
+        return mCondition != null && mCondition.test(bundle) ? mThenCommand : mElseCommand;
+    }
+
+    @Override
+    public Command[] getBranches() {
+        return new Command[]{mThenCommand, mElseCommand};
+    }
+}
@@ -0,0 +1,337 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An Command running a Source and Stages at the same time, every item goes to the next Stage through a bounded
+ * SpscQueue as soon as it is emitted, so the whole result never has to be kept in memory. A Stage emitting to a full
+ * queue waits, which slows down the Stages before it.
+ * <p>
+ * The Command completes with the bundle of the last Stage's onEnd(), an exception of any Stage stops the others and
+ * is reported by onError() with the message in KEY_ERROR. The Stages run on the threads of BlockingCommand.
+ */
+public class PipelineCommand extends Command {
+
+    private static final String TAG = "PipelineCommand";
+
+    public static final String KEY_ERROR = "PipelineCommand.error";
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final Object END = new Object();
+
+    // A waiting thread checks its queue again at least this often, in case an unpark() is missed
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Emitter LAST_EMITTER = new Emitter() {
+        @Override
+        public void emit(Object item) {
+            throw new IllegalStateException("the last stage can not emit");
+        }
+    };
+
+    public static interface Emitter {
+        /**
+         * Pass an item to the next Stage, wait while its queue is full
+         *
+         * @param item the item, can not be null
+         * @throws InterruptedException if the Command is stopped
+         */
+        public void emit(Object item) throws InterruptedException;
+    }
+
+    /**
+     * The first step of the pipeline
+     */
+    public static abstract class Source {
+        /**
+         * @param input   the bundle from last Command, need to check null or not
+         * @param emitter pass the items to the first Stage
+         * @throws Exception the Command get error
+         */
+        public abstract void produce(Bundle input, Emitter emitter) throws Exception;
+    }
+
+    public static abstract class Stage {
+        /**
+         * Handle an item of the Stage before
+         *
+         * @param item    the item
+         * @param emitter pass the items to the next Stage, the last Stage can not emit
+         * @throws Exception the Command get error
+         */
+        public abstract void onItem(Object item, Emitter emitter) throws Exception;
+
+        /**
+         * The Stage before has no more item
+         *
+         * @param emitter pass the items to the next Stage, the last Stage can not emit
+         * @return the bundle for the next Command, only used for the last Stage
+         * @throws Exception the Command get error
+         */
+        public Bundle onEnd(Emitter emitter) throws Exception {
+            return null;
+        }
+    }
+
+    private final Source mSource;
+    private final Stage[] mStages;
+    private int mCapacity = DEFAULT_CAPACITY;
+    private volatile Run mRun;
+
+    public PipelineCommand(Source source, Stage... stages) {
+        if (source == null || stages == null || stages.length == 0) {
+            throw new IllegalArgumentException("need a source and at least one stage");
+        }
+        mSource = source;
+        mStages = stages;
+    }
+
+    /**
+     * Set the max count of items waiting between two Stages
+     *
+     * @param capacity the queue capacity, DEFAULT_CAPACITY by default, ignored if it is not larger than 0
+     * @return this Command
+     */
+    public PipelineCommand setCapacity(int capacity) {
+        if (capacity > 0) {
+            mCapacity = capacity;
+        } else {
+            Debug.logD(TAG, "mCapacity must larger than 0");
+        }
+        return this;
+    }
+
+    @Override
+    public boolean start(Handler handler, Bundle bundle) {
+        if (!super.start(handler, bundle)) {
+            return false;
+        }
+        Run run = new Run();
+        mRun = run;
+        run.start(bundle);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (!super.stop()) {
+            return false;
+        }
+        Run run = mRun;
+        mRun = null;
+        if (run != null) {
+            run.stop();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean pause() {
+        if (!super.pause()) {
+            return false;
+        }
+        Run run = mRun;
+        if (run != null) {
+            run.setPaused(true);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean resume() {
+        if (!super.resume()) {
+            return false;
+        }
+        Run run = mRun;
+        if (run != null) {
+            run.setPaused(false);
+        }
+        return true;
+    }
+
+    /**
+     * One execution of the pipeline, queue i is written by thread i and read by thread i + 1 (thread 0 is the Source)
+     */
+    private class Run {
+        private final List<SpscQueue<Object>> mQueues;
+        // Written by the thread of each slot and read by the others to unpark it
+        private final AtomicReferenceArray<Thread> mThreads;
+        private final AtomicBoolean mIsFinished = new AtomicBoolean(false);
+        private volatile boolean mIsStopped = false;
+        private volatile boolean mIsPaused = false;
+
+        Run() {
+            mQueues = new ArrayList<SpscQueue<Object>>(mStages.length);
+            for (int i = 0; i < mStages.length; i++) {
+                mQueues.add(new SpscQueue<Object>(mCapacity));
+            }
+            mThreads = new AtomicReferenceArray<Thread>(mStages.length + 1);
+        }
+
+        void start(final Bundle input) {
+            execute(0, new Task() {
+                @Override
+                public void run() throws Exception {
+                    mSource.produce(input, emitter(0));
+                    put(0, END);
+                }
+            });
+            for (int i = 0; i < mStages.length; i++) {
+                final int index = i;
+                execute(index + 1, new Task() {
+                    @Override
+                    public void run() throws Exception {
+                        runStage(index);
+                    }
+                });
+            }
+        }
+
+        private void runStage(int index) throws Exception {
+            Stage stage = mStages[index];
+            boolean isLast = index == mStages.length - 1;
+            Emitter emitter = isLast ? LAST_EMITTER : emitter(index + 1);
+            while (true) {
+                Object item = take(index);
+                if (item != END) {
+                    stage.onItem(item, emitter);
+                    continue;
+                }
+                Bundle result = stage.onEnd(emitter);
+                if (!isLast) {
+                    put(index + 1, END);
+                    return;
+                }
+                // The result is kept until resume() if the Command is paused now
+                checkState();
+                finish(result);
+                return;
+            }
+        }
+
+        private Emitter emitter(final int queueIndex) {
+            return new Emitter() {
+                @Override
+                public void emit(Object item) throws InterruptedException {
+                    if (item == null) {
+                        throw new NullPointerException("item can not be null");
+                    }
+                    put(queueIndex, item);
+                }
+            };
+        }
+
+        private void put(int queueIndex, Object item) throws InterruptedException {
+            SpscQueue<Object> queue = mQueues.get(queueIndex);
+            checkState();
+            while (!queue.offer(item)) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                checkState();
+            }
+            LockSupport.unpark(mThreads.get(queueIndex + 1));
+        }
+
+        private Object take(int queueIndex) throws InterruptedException {
+            SpscQueue<Object> queue = mQueues.get(queueIndex);
+            checkState();
+            Object item;
+            while ((item = queue.poll()) == null) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                checkState();
+            }
+            LockSupport.unpark(mThreads.get(queueIndex));
+            return item;
+        }
+
+        private void checkState() throws InterruptedException {
+            while (true) {
+                if (mIsStopped || Thread.interrupted()) {
+                    throw new InterruptedException("Command is stopped");
+                }
+                if (!mIsPaused) {
+                    return;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+
+        private void execute(final int threadIndex, final Task task) {
+            BlockingCommand.ExecutorHolder.EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A pool thread can carry the interrupt of a late stop() of the last Command it ran
+                    Thread.interrupted();
+                    mThreads.set(threadIndex, Thread.currentThread());
+                    try {
+                        task.run();
+                    } catch (InterruptedException e) {
+                        if (!mIsStopped) {
+                            fail(e);
+                        }
+                    } catch (Exception e) {
+                        fail(e);
+                    } finally {
+                        mThreads.set(threadIndex, null);
+                        Thread.interrupted();
+                    }
+                }
+            });
+        }
+
+        void setPaused(boolean isPaused) {
+            mIsPaused = isPaused;
+            unparkAll();
+        }
+
+        void stop() {
+            mIsStopped = true;
+            for (int i = 0; i < mThreads.length(); i++) {
+                Thread thread = mThreads.get(i);
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        private void unparkAll() {
+            for (int i = 0; i < mThreads.length(); i++) {
+                LockSupport.unpark(mThreads.get(i));
+            }
+        }
+
+        private void finish(Bundle result) {
+            if (!mIsFinished.compareAndSet(false, true) || mRun != this) {
+                return;
+            }
+            mRun = null;
+            onComplete(result);
+        }
+
+        private void fail(Exception error) {
+            if (!mIsFinished.compareAndSet(false, true) || mRun != this) {
+                return;
+            }
+            Debug.logE(TAG, "fail() " + PipelineCommand.this, error);
+            mRun = null;
+            stop();
+            Bundle errorBundle = new Bundle();
+            errorBundle.putString(KEY_ERROR, String.valueOf(error.getMessage()));
+            onError(errorBundle);
+        }
+    }
+
+    private static interface Task {
+        public void run() throws Exception;
+    }
+}
@@ -1,19 +1,23 @@
-
 package com.timweng.lib.cmd.unit;
 
 import android.os.Bundle;
-import android.os.Handler;
 
 import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.CommandSupplier;
 import com.timweng.lib.cmd.Debug;
+import com.timweng.lib.cmd.SplitRandom;
 
 /**
- * An Command for select next Actions randomly
+ * An Command for select next Actions randomly, it's selected by CommandDirector inline and the bundle from last
+ * Command is passed to the selected Command. The branches are uniform unless weights are set, the generator is the one
+ * of the run, so a seeded CommandDirector selects the same branches every time.
  */
-public class RandomCommand extends Command {
+public class RandomCommand extends ControlCommand {
     private static final String TAG = "RandomAction";
 
     private Command[] mCommands;
+    private CommandSupplier[] mSuppliers;
+    private AliasTable mAliasTable;
 
     public RandomCommand(Command... commands) {
         mCommands = commands;
@@ -21,20 +25,63 @@ public class RandomCommand extends Command {
 
     public RandomCommand setCommands(Command... commands) {
         mCommands = commands;
+        mSuppliers = null;
         return this;
     }
 
+    /**
+     * Set the branches lazily, only the selected branch is created
+     *
+     * @param suppliers the suppliers of the branches
+     * @return this Command
+     */
+    public RandomCommand setBranches(CommandSupplier... suppliers) {
+        mSuppliers = suppliers;
+        mCommands = null;
+        return this;
+    }
+
+    /**
+     * Set the weights of the branches, in the same order as the branches
+     *
+     * @param weights the weights, null means uniform
+     * @return this Command
+     */
+    public RandomCommand setWeights(double... weights) {
+        mAliasTable = weights == null ? null : new AliasTable(weights);
+        return this;
+    }
+
+    public Command[] getCommands() {
+        return mCommands;
+    }
+
     @Override
-    public boolean start(Handler handler, Bundle bundle) {
-        if (!super.start(handler, bundle)) {
-            return false;
-        }
-        if (mCommands == null || mCommands.length == 0) {
+    public Command[] getBranches() {
+        return mCommands;
+    }
+
+    @Override
+    public Command select(Bundle bundle, SplitRandom random) {
+        if (mSuppliers != null && mSuppliers.length > 0) {
+            return mSuppliers[selectIndex(random, mSuppliers.length)].get();
+        } else if (mCommands == null || mCommands.length == 0) {
             Debug.logD(TAG, "Actions can not be null or empty");
+            return null;
         } else {
-            setNext(mCommands[(int) (Math.random() * mCommands.length)]);
+            return mCommands[selectIndex(random, mCommands.length)];
+        }
+    }
+
+    private int selectIndex(SplitRandom random, int count) {
+        AliasTable table = mAliasTable;
+        if (table == null) {
+            return random.nextInt(count);
+        }
+        if (table.size() != count) {
+            Debug.logD(TAG, "weights count " + table.size() + " != branches count " + count);
+            return random.nextInt(count);
         }
-        onComplete(null);
-        return true;
+        return table.sample(random);
     }
 }
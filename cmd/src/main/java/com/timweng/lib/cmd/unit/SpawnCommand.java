@@ -2,7 +2,10 @@
 package com.timweng.lib.cmd.unit;
 
 import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.CommandSupplier;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -52,6 +55,7 @@ public class SpawnCommand extends Command {
     }
 
     private Command[] mCommands;
+    private CommandSupplier[] mSuppliers;
 
     private CompleteType mCompleteType = CompleteType.ONE_DONE;
 
@@ -60,15 +64,46 @@ public class SpawnCommand extends Command {
     }
 
     public SpawnData genSpawnData() {
-        SpawnData data = new SpawnData(this, mCommands);
+        Command[] commands = mCommands;
+        if (mSuppliers != null) {
+            // Created for this run only, SpawnData is dropped when the spawn is done
+            List<Command> list = new ArrayList<Command>(mSuppliers.length);
+            for (CommandSupplier supplier : mSuppliers) {
+                Command command = supplier.get();
+                if (command != null) {
+                    list.add(command);
+                }
+            }
+            commands = list.toArray(new Command[list.size()]);
+        } else if (commands == null) {
+            commands = new Command[0];
+        }
+        SpawnData data = new SpawnData(this, commands);
         return data;
     }
 
     public SpawnCommand setCommands(Command... commands) {
         mCommands = commands;
+        mSuppliers = null;
+        return this;
+    }
+
+    /**
+     * Set the children lazily, they are created every time this SpawnCommand starts
+     *
+     * @param suppliers the suppliers of the children
+     * @return this Command
+     */
+    public SpawnCommand setChildren(CommandSupplier... suppliers) {
+        mSuppliers = suppliers;
+        mCommands = null;
         return this;
     }
 
+    public Command[] getCommands() {
+        return mCommands;
+    }
+
     public SpawnCommand setCompleteType(CompleteType type) {
         mCompleteType = type;
         return this;
@@ -0,0 +1,94 @@
+package com.timweng.lib.cmd.unit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ * The items are kept in a ring buffer, each side writes only its own index and reads the index of the other side
+ * again only when its cached copy says the queue is full (or empty).
+ */
+public final class SpscQueue<E> {
+
+    private final Object[] mBuffer;
+    private final int mMask;
+    // The index of the next item to poll, written by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // The index of the next item to offer, written by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    // The producer's copy of mHead
+    private long mHeadCache = 0;
+    // The consumer's copy of mTail
+    private long mTailCache = 0;
+
+    /**
+     * @param capacity the max count of items, rounded up to a power of 2
+     */
+    public SpscQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must between 1 and 2^30: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Add an item, only called by the producer thread
+     *
+     * @param item the item, can not be null
+     * @return false if the queue is full
+     */
+    public boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException("item can not be null");
+        }
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mBuffer.length) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mBuffer.length) {
+                return false;
+            }
+        }
+        mBuffer[(int) tail & mMask] = item;
+        // The item is visible to the consumer before the new tail
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest item, only called by the consumer thread
+     *
+     * @return the item, null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = mHead.get();
+        if (head >= mTailCache) {
+            mTailCache = mTail.get();
+            if (head >= mTailCache) {
+                return null;
+            }
+        }
+        int index = (int) head & mMask;
+        E item = (E) mBuffer[index];
+        mBuffer[index] = null;
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return size() <= 0;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+}
@@ -0,0 +1,63 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.SplitRandom;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An Command for selecting a Command by a value in the bundle from last Command
+ */
+public class SwitchCommand extends ControlCommand {
+
+    private String mKey;
+    private Map<Object, Command> mCaseMap = new LinkedHashMap<Object, Command>();
+    private Command mDefaultCommand = null;
+
+    /**
+     * @param key the key of the value in the bundle
+     */
+    public SwitchCommand(String key) {
+        mKey = key;
+    }
+
+    /**
+     * Add a case
+     *
+     * @param value   the value, compared by equals()
+     * @param command the Command selected by the value
+     * @return this Command
+     */
+    public SwitchCommand addCase(Object value, Command command) {
+        mCaseMap.put(value, command);
+        return this;
+    }
+
+    /**
+     * Set the Command selected when no case matches
+     *
+     * @param command the default Command, null means continue with the next Command
+     * @return this Command
+     */
+    public SwitchCommand setDefault(Command command) {
+        mDefaultCommand = command;
+        return this;
+    }
+
+    @Override
+    public Command select(Bundle bundle, SplitRandom random) {
+        Object value = bundle == null ? null : bundle.get(mKey);
+        Command command = mCaseMap.get(value);
+        return command != null ? command : mDefaultCommand;
+    }
+
+    @Override
+    public Command[] getBranches() {
+        Command[] branches = mCaseMap.values().toArray(new Command[mCaseMap.size() + 1]);
+        branches[mCaseMap.size()] = mDefaultCommand;
+        return branches;
+    }
+}
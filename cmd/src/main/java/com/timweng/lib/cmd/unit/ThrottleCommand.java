@@ -0,0 +1,130 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+
+/**
+ * An Command for rate limiting, it completes when it gets a token from the TokenBucket and passes the bundle to the
+ * next Command. While there is no token the run waits on the timer of CommandDirector (or the worker Handler), no
+ * thread is blocked.
+ */
+public class ThrottleCommand extends Command {
+
+    private static final String TAG = "ThrottleCommand";
+
+    private TokenBucket mTokenBucket;
+    private long mTolerance = 0;
+    private Bundle mBundle;
+
+    public ThrottleCommand(TokenBucket tokenBucket) {
+        mTokenBucket = tokenBucket;
+    }
+
+    public ThrottleCommand setTokenBucket(TokenBucket tokenBucket) {
+        mTokenBucket = tokenBucket;
+        return this;
+    }
+
+    /**
+     * Let the wait for a token end up to tolerance later, see DelayCommand.setTolerance()
+     *
+     * @param tolerance how much later the wait can end in milliseconds, 0 by default
+     * @return this Command
+     */
+    public ThrottleCommand setTolerance(long tolerance) {
+        if (tolerance >= 0) {
+            mTolerance = tolerance;
+        } else {
+            Debug.logD(TAG, "mTolerance can not be negative");
+        }
+        return this;
+    }
+
+    @Override
+    public boolean start(Handler handler, Bundle bundle) {
+        if (!super.start(handler, bundle)) {
+            return false;
+        }
+        mBundle = bundle;
+        acquire();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (!super.stop()) {
+            return false;
+        }
+        removeAcquire();
+        mBundle = null;
+        return true;
+    }
+
+    @Override
+    public boolean pause() {
+        if (!super.pause()) {
+            return false;
+        }
+        removeAcquire();
+        return true;
+    }
+
+    @Override
+    public boolean resume() {
+        if (!super.resume()) {
+            return false;
+        }
+        mHandler.post(mAcquireRunnable);
+        return true;
+    }
+
+    private void acquire() {
+        if (mTokenBucket == null) {
+            Debug.logD(TAG, "mTokenBucket can not be null");
+            complete();
+            return;
+        }
+        long waitNanos = mTokenBucket.tryAcquire();
+        if (waitNanos <= 0) {
+            complete();
+        } else {
+            long waitMillis = (waitNanos + 999999) / 1000000;
+            Debug.logD(TAG, "acquire() wait " + waitMillis);
+            postAcquire(waitMillis);
+        }
+    }
+
+    private void postAcquire(long waitMillis) {
+        if (mTimer != null) {
+            mTimer.postDelayed(mAcquireRunnable, waitMillis, mTolerance);
+        } else {
+            mHandler.postDelayed(mAcquireRunnable, waitMillis);
+        }
+    }
+
+    private void removeAcquire() {
+        if (mTimer != null) {
+            mTimer.removeCallbacks(mAcquireRunnable);
+        }
+        mHandler.removeCallbacks(mAcquireRunnable);
+    }
+
+    private void complete() {
+        Bundle bundle = mBundle;
+        mBundle = null;
+        onComplete(bundle);
+    }
+
+    private Runnable mAcquireRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (isProcessing()) {
+                acquire();
+            }
+        }
+    };
+}
@@ -0,0 +1,55 @@
+package com.timweng.lib.cmd.unit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, it can be shared by ThrottleCommands of any run and any CommandDirector.
+ * <p>
+ * The bucket keeps only the time the next token is due (GCRA), taking a token is one compare-and-set of that time.
+ */
+public class TokenBucket {
+
+    private final long mIntervalNanos;
+    private final long mBurstNanos;
+    private final AtomicLong mDueTime;
+
+    /**
+     * @param capacity        the max count of tokens which can be taken at once, the bucket starts full
+     * @param tokensPerSecond the refill rate
+     */
+    public TokenBucket(int capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, System.nanoTime());
+    }
+
+    TokenBucket(int capacity, double tokensPerSecond, long nowNanos) {
+        if (capacity <= 0 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and tokensPerSecond must larger than 0");
+        }
+        mIntervalNanos = Math.max(1, (long) (1000000000L / tokensPerSecond));
+        mBurstNanos = mIntervalNanos * capacity;
+        mDueTime = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Take a token if there is one
+     *
+     * @return 0 if a token is taken, otherwise the nanoseconds until the next token
+     */
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    long tryAcquire(long nowNanos) {
+        while (true) {
+            long dueTime = mDueTime.get();
+            long newDueTime = (dueTime - nowNanos > 0 ? dueTime : nowNanos) + mIntervalNanos;
+            long overflow = newDueTime - nowNanos - mBurstNanos;
+            if (overflow > 0) {
+                return overflow;
+            }
+            if (mDueTime.compareAndSet(dueTime, newDueTime)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoalescingTimerTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class Record implements Runnable {
+        final List<Record> mRunList;
+
+        Record(List<Record> runList) {
+            mRunList = runList;
+        }
+
+        @Override
+        public void run() {
+            mRunList.add(this);
+        }
+    }
+
+    @Test
+    public void onWakeUp_runsOverlappingWindowsTogether() throws Exception {
+        List<Record> runList = new ArrayList<Record>();
+        CoalescingTimer timer = new CoalescingTimer(null);
+        Record first = new Record(runList);
+        Record second = new Record(runList);
+        Record third = new Record(runList);
+        timer.postDelayed(first, 100, 50, 0);
+        timer.postDelayed(second, 120, 50, 0);
+        timer.postDelayed(third, 200, 50, 0);
+        assertEquals(150, timer.getWakeTime());
+
+        assertEquals(2, timer.onWakeUp(150));
+        assertEquals(250, timer.getWakeTime());
+        assertEquals(1, timer.onWakeUp(250));
+        assertEquals(3, runList.size());
+        assertEquals(2, timer.getWakeUpCount());
+        assertEquals(3, timer.getRunCount());
+    }
+
+    @Test
+    public void onWakeUp_keepsExactDelaysWithoutTolerance() throws Exception {
+        List<Record> runList = new ArrayList<Record>();
+        CoalescingTimer timer = new CoalescingTimer(null);
+        timer.postDelayed(new Record(runList), 100, 0, 0);
+        timer.postDelayed(new Record(runList), 101, 0, 0);
+        assertEquals(100, timer.getWakeTime());
+        assertEquals(1, timer.onWakeUp(100));
+        assertEquals(101, timer.getWakeTime());
+    }
+
+    @Test
+    public void removeCallbacks_movesWakeTime() throws Exception {
+        List<Record> runList = new ArrayList<Record>();
+        CoalescingTimer timer = new CoalescingTimer(null);
+        Record first = new Record(runList);
+        Record second = new Record(runList);
+        timer.postDelayed(first, 100, 0, 0);
+        timer.postDelayed(second, 300, 0, 0);
+        timer.removeCallbacks(first);
+        assertEquals(300, timer.getWakeTime());
+        assertEquals(0, timer.onWakeUp(100));
+        assertEquals(1, timer.onWakeUp(300));
+        assertSame(second, runList.get(0));
+    }
+
+    @Test
+    public void postDelayed_replacesWaitingRunnable() throws Exception {
+        List<Record> runList = new ArrayList<Record>();
+        CoalescingTimer timer = new CoalescingTimer(null);
+        Record record = new Record(runList);
+        timer.postDelayed(record, 100, 0, 0);
+        timer.postDelayed(record, 500, 0, 0);
+        assertEquals(500, timer.getWakeTime());
+        assertEquals(1, timer.onWakeUp(500));
+        assertEquals(1, runList.size());
+    }
+}
@@ -0,0 +1,53 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CommandSnapshotTest {
+
+    @Test
+    public void write_changedRangeIsReadBack() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            CommandSnapshot snapshot = new CommandSnapshot(file);
+            snapshot.write(new byte[]{1, 2, 3, 4, 5, 6});
+            snapshot.write(new byte[]{1, 2, 9, 9, 5, 6});
+            assertArrayEquals(new byte[]{1, 2, 9, 9, 5, 6}, snapshot.read());
+            snapshot.write(new byte[]{1, 2, 9});
+            assertArrayEquals(new byte[]{1, 2, 9}, snapshot.read());
+            snapshot.write(new byte[]{1, 2, 9, 7, 7});
+            snapshot.close();
+
+            CommandSnapshot reopened = new CommandSnapshot(file);
+            assertArrayEquals(new byte[]{1, 2, 9, 7, 7}, reopened.read());
+            reopened.clear();
+            assertNull(reopened.read());
+            reopened.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void write_growsTheFile() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            CommandSnapshot snapshot = new CommandSnapshot(file);
+            byte[] body = new byte[10000];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) i;
+            }
+            snapshot.write(new byte[]{1});
+            snapshot.write(body);
+            body[5000] = 42;
+            snapshot.write(body);
+            assertArrayEquals(body, snapshot.read());
+            snapshot.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class DirectorPublisherTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    // Deliver on the calling thread, so the tests check the deliveries right after publish() and request()
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> mRunnableList = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mRunnableList.add(command);
+        }
+
+        void runAll() {
+            while (!mRunnableList.isEmpty()) {
+                mRunnableList.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordSubscriber implements DirectorPublisher.Subscriber<DirectorEvent> {
+        final List<String> mKeyList = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean mIsDelivering = new AtomicBoolean();
+        volatile boolean mIsOverlapped = false;
+        volatile boolean mIsComplete = false;
+        volatile Throwable mError = null;
+        DirectorPublisher.Subscription mSubscription;
+
+        @Override
+        public void onSubscribe(DirectorPublisher.Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(DirectorEvent item) {
+            if (!mIsDelivering.compareAndSet(false, true)) {
+                mIsOverlapped = true;
+            }
+            mKeyList.add(item.getRunKey());
+            mIsDelivering.set(false);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            mIsComplete = true;
+        }
+    }
+
+    private static DirectorEvent genEvent(DirectorEvent.Type type, String key) {
+        return new DirectorEvent(type, null, null, null, key);
+    }
+
+    private static void publishNext(DirectorPublisher publisher, String... keys) {
+        for (String key : keys) {
+            publisher.publish(genEvent(DirectorEvent.Type.NEXT, key));
+        }
+    }
+
+    @Test
+    public void request_deliversOnlyTheDemand() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 8, DirectorPublisher.OverflowPolicy.DROP_OLDEST);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        publishNext(publisher, "a", "b", "c");
+        assertTrue(subscriber.mKeyList.isEmpty());
+
+        subscriber.mSubscription.request(2);
+        assertEquals(2, subscriber.mKeyList.size());
+
+        // The demand is used up, the next update waits for another request
+        publishNext(publisher, "d");
+        assertEquals(2, subscriber.mKeyList.size());
+        subscriber.mSubscription.request(5);
+        assertEquals(4, subscriber.mKeyList.size());
+
+        // The rest of the demand is used by later updates directly
+        publishNext(publisher, "e");
+        assertEquals(5, subscriber.mKeyList.size());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void request_nonPositiveIsError() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 8, null);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        subscriber.mSubscription.request(0);
+        assertTrue(subscriber.mError instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void overflow_dropOldest() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 2, DirectorPublisher.OverflowPolicy.DROP_OLDEST);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        publishNext(publisher, "a", "b", "c");
+        assertEquals(1, publisher.getDroppedCount());
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(2, subscriber.mKeyList.size());
+        assertEquals("b", subscriber.mKeyList.get(0));
+        assertEquals("c", subscriber.mKeyList.get(1));
+    }
+
+    @Test
+    public void overflow_dropLatest() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 2, DirectorPublisher.OverflowPolicy.DROP_LATEST);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        publishNext(publisher, "a", "b", "c");
+        assertEquals(1, publisher.getDroppedCount());
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(2, subscriber.mKeyList.size());
+        assertEquals("a", subscriber.mKeyList.get(0));
+        assertEquals("b", subscriber.mKeyList.get(1));
+    }
+
+    @Test
+    public void overflow_conflateKeepsLatestNextAndErrors() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 3, DirectorPublisher.OverflowPolicy.CONFLATE);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        publishNext(publisher, "a", "b");
+        publisher.publish(genEvent(DirectorEvent.Type.ERROR, "error"));
+        publishNext(publisher, "c", "d");
+        assertEquals(2, publisher.getDroppedCount());
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(3, subscriber.mKeyList.size());
+        assertEquals("b", subscriber.mKeyList.get(0));
+        assertEquals("error", subscriber.mKeyList.get(1));
+        assertEquals("d", subscriber.mKeyList.get(2));
+    }
+
+    @Test
+    public void close_completesAfterBufferedUpdates() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 4, null);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        publishNext(publisher, "a");
+        publisher.close();
+        assertFalse(subscriber.mIsComplete);
+
+        subscriber.mSubscription.request(1);
+        assertEquals(1, subscriber.mKeyList.size());
+        assertTrue(subscriber.mIsComplete);
+    }
+
+    @Test
+    public void drain_neverDeliversAtTheSameTime() throws Exception {
+        final int publishCount = 4000;
+        final int requestThreadCount = 4;
+        final DirectorPublisher publisher = new DirectorPublisher(null, publishCount,
+                DirectorPublisher.OverflowPolicy.DROP_LATEST);
+        final RecordSubscriber subscriber = new RecordSubscriber();
+        publisher.subscribe(subscriber, DIRECT);
+
+        List<Thread> threadList = new ArrayList<Thread>();
+        threadList.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < publishCount; i++) {
+                    publisher.publish(genEvent(DirectorEvent.Type.NEXT, String.valueOf(i)));
+                }
+            }
+        }));
+        for (int t = 0; t < requestThreadCount; t++) {
+            threadList.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < publishCount / requestThreadCount; i++) {
+                        subscriber.mSubscription.request(1);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threadList) {
+            thread.start();
+        }
+        for (Thread thread : threadList) {
+            thread.join();
+        }
+
+        assertFalse(subscriber.mIsOverlapped);
+        assertEquals(0, publisher.getDroppedCount());
+        assertEquals(publishCount, subscriber.mKeyList.size());
+        for (int i = 0; i < publishCount; i++) {
+            assertEquals(String.valueOf(i), subscriber.mKeyList.get(i));
+        }
+    }
+
+    @Test
+    public void publish_deliversOnlyOnTheExecutor() throws Exception {
+        DirectorPublisher publisher = new DirectorPublisher(null, 8, null);
+        RecordSubscriber subscriber = new RecordSubscriber();
+        QueueExecutor executor = new QueueExecutor();
+        publisher.subscribe(subscriber, executor);
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        publishNext(publisher, "a", "b");
+        publisher.close();
+        assertTrue(subscriber.mKeyList.isEmpty());
+        assertFalse(subscriber.mIsComplete);
+        // One delivery is scheduled at a time, it takes the updates offered meanwhile
+        assertEquals(1, executor.mRunnableList.size());
+
+        executor.runAll();
+        assertEquals(2, subscriber.mKeyList.size());
+        assertEquals("a", subscriber.mKeyList.get(0));
+        assertEquals("b", subscriber.mKeyList.get(1));
+        assertTrue(subscriber.mIsComplete);
+    }
+}
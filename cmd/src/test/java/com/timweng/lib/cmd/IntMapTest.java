@@ -0,0 +1,70 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntMapTest {
+
+    @Test
+    public void put_replacesValue() throws Exception {
+        IntMap<String> map = new IntMap<String>();
+        assertNull(map.put(7, "a"));
+        assertEquals("a", map.put(7, "b"));
+        assertEquals("b", map.get(7));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void remove_keepsCollidedKeysReachable() throws Exception {
+        IntMap<Integer> map = new IntMap<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 16, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(Integer.valueOf(i), map.remove(i * 16));
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), map.get(i * 16));
+        }
+        assertNull(map.remove(0));
+    }
+
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        IntMap<Integer> map = new IntMap<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(500) - 250;
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), map.values().size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void clear_removesAll() throws Exception {
+        IntMap<String> map = new IntMap<String>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "v" + i);
+        }
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(5));
+        map.put(5, "x");
+        assertEquals("x", map.get(5));
+    }
+}
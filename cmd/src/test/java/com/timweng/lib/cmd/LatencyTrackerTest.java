@@ -0,0 +1,58 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+
+    private static class FastCommand extends Command {
+    }
+
+    private static class SlowCommand extends FastCommand {
+    }
+
+    @Test
+    public void record_movesTowardNewLatency() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.setAlpha(0.5);
+        assertEquals(0, tracker.estimate(FastCommand.class), 0);
+        tracker.record(FastCommand.class, 100);
+        assertEquals(100, tracker.estimate(FastCommand.class), 0);
+        tracker.record(FastCommand.class, 200);
+        assertEquals(150, tracker.estimate(FastCommand.class), 0);
+    }
+
+    @Test
+    public void estimateChain_addsNextCommands() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(FastCommand.class, 10);
+        tracker.record(SlowCommand.class, 100);
+        Command head = new FastCommand();
+        head.setNext(new SlowCommand()).setNext(new FastCommand());
+        assertEquals(120, tracker.estimateChain(head), 0);
+    }
+
+    @Test
+    public void estimateChain_stopsOnLoop() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(FastCommand.class, 1);
+        Command command = new FastCommand();
+        command.setNext(command);
+        assertEquals(64, tracker.estimateChain(command), 0);
+    }
+
+    @Test
+    public void sortLongestFirst_keepsOrderOfEqualEstimates() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(SlowCommand.class, 100);
+        Command fast1 = new FastCommand();
+        Command fast2 = new FastCommand();
+        Command slow = new SlowCommand();
+        Command chain = new FastCommand();
+        chain.setNext(new SlowCommand()).setNext(new SlowCommand());
+        Command[] commands = {fast1, slow, fast2, chain};
+        tracker.sortLongestFirst(commands);
+        assertArrayEquals(new Command[]{chain, slow, fast1, fast2}, commands);
+    }
+}
@@ -0,0 +1,49 @@
+package com.timweng.lib.cmd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ShardedCommandDirectorTest {
+
+    private static int[] countKeys(String prefix, int keyCount, int shardCount) {
+        int[] counts = new int[shardCount];
+        for (int i = 0; i < keyCount; i++) {
+            counts[ShardedCommandDirector.indexOf(prefix + i, shardCount)]++;
+        }
+        return counts;
+    }
+
+    private static void assertEven(int[] counts, int keyCount) {
+        int mean = keyCount / counts.length;
+        for (int i = 0; i < counts.length; i++) {
+            assertTrue("shard " + i + " has " + counts[i] + " keys", Math.abs(counts[i] - mean) < mean / 5);
+        }
+    }
+
+    @Test
+    public void indexOf_spreadsSimilarKeys() throws Exception {
+        assertEven(countKeys("user", 10000, 8), 10000);
+        assertEven(countKeys("image/", 10000, 6), 10000);
+    }
+
+    @Test
+    public void indexOf_spreadsOverPowerOfTwoShards() throws Exception {
+        // Keys which differ only in the last character
+        assertEven(countKeys("k", 64, 4), 64);
+    }
+
+    @Test
+    public void indexOf_isStableAndInRange() throws Exception {
+        for (int shardCount = 1; shardCount <= 16; shardCount++) {
+            for (int i = 0; i < 1000; i++) {
+                String key = "key" + i;
+                int index = ShardedCommandDirector.indexOf(key, shardCount);
+                assertTrue(index >= 0 && index < shardCount);
+                assertEquals(index, ShardedCommandDirector.indexOf(new String(key), shardCount));
+            }
+            int nullIndex = ShardedCommandDirector.indexOf(null, shardCount);
+            assertTrue(nullIndex >= 0 && nullIndex < shardCount);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.timweng.lib.cmd.plan;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+import com.timweng.lib.cmd.unit.DelayCommand;
+import com.timweng.lib.cmd.unit.FunctionCommand;
+import com.timweng.lib.cmd.unit.RandomCommand;
+import com.timweng.lib.cmd.unit.SpawnCommand;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PlanLoaderTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class NamedCommand extends FunctionCommand {
+        final String mName;
+
+        NamedCommand(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Bundle function(Bundle inputBundle) {
+            return inputBundle;
+        }
+    }
+
+    private static CommandRegistry genRegistry() {
+        return new CommandRegistry().register("named", new CommandRegistry.Creator() {
+            @Override
+            public Command create(long value, String argument, Command[] children) {
+                return new NamedCommand(argument);
+            }
+        });
+    }
+
+    private static byte[] genPlanData() {
+        CommandPlan.Builder builder = new CommandPlan.Builder();
+        int first = builder.add("named", 0, "first");
+        int delay = builder.addDelay(1500);
+        int a = builder.add("named", 0, "a");
+        int b = builder.add("named", 0, "b");
+        int spawn = builder.addSpawn(SpawnCommand.CompleteType.ALL_DONE, delay, a);
+        int random = builder.addRandom(b, first);
+        builder.setNext(first, spawn).setNext(spawn, random);
+        return builder.build().toByteArray();
+    }
+
+    @Test
+    public void load_instantiatesGraph() throws Exception {
+        CommandPlan plan = new PlanLoader(genRegistry()).load(genPlanData());
+        assertNotNull(plan);
+        assertEquals(6, plan.size());
+
+        Command first = plan.instantiate();
+        assertEquals("first", ((NamedCommand) first).mName);
+        SpawnCommand spawn = (SpawnCommand) first.getNext();
+        assertEquals(SpawnCommand.CompleteType.ALL_DONE, spawn.getCompleteType());
+        assertEquals(2, spawn.getCommands().length);
+        assertTrue(spawn.getCommands()[0] instanceof DelayCommand);
+        assertEquals("a", ((NamedCommand) spawn.getCommands()[1]).mName);
+        RandomCommand random = (RandomCommand) spawn.getNext();
+        assertEquals("b", ((NamedCommand) random.getCommands()[0]).mName);
+        assertSame(first, random.getCommands()[1]);
+    }
+
+    @Test
+    public void load_instantiatesNewGraphEveryTime() throws Exception {
+        CommandPlan plan = new PlanLoader(genRegistry()).load(genPlanData());
+        assertNotNull(plan);
+        assertNotSame(plan.instantiate(), plan.instantiate());
+    }
+
+    @Test
+    public void load_cachesByContent() throws Exception {
+        PlanLoader loader = new PlanLoader(genRegistry());
+        CommandPlan plan = loader.load(genPlanData());
+        assertSame(plan, loader.load(genPlanData()));
+        assertEquals(1, loader.getMissCount());
+        assertEquals(1, loader.getHitCount());
+    }
+
+    @Test
+    public void encode_roundTrip() throws Exception {
+        byte[] data = genPlanData();
+        CommandPlan plan = new PlanLoader(genRegistry()).load(data);
+        assertArrayEquals(data, plan.toByteArray());
+    }
+
+    @Test
+    public void load_reusesValidationAcrossLoaders() throws Exception {
+        File dir = File.createTempFile("plans", "");
+        dir.delete();
+        try {
+            PlanLoader first = new PlanLoader(genRegistry());
+            first.setCacheDir(dir);
+            assertNotNull(first.load(genPlanData()));
+            assertEquals(0, first.getDiskHitCount());
+
+            // A new loader is what a later launch sees
+            PlanLoader second = new PlanLoader(genRegistry());
+            second.setCacheDir(dir);
+            CommandPlan plan = second.load(genPlanData());
+            assertEquals(1, second.getDiskHitCount());
+            assertEquals("first", ((NamedCommand) plan.instantiate()).mName);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void load_rejectsUnreachableNode() throws Exception {
+        CommandPlan.Builder builder = new CommandPlan.Builder();
+        int first = builder.add("named", 0, "first");
+        builder.add("named", 0, "dead");
+        builder.setRoot(first);
+        assertNull(new PlanLoader(genRegistry()).load(builder.build().toByteArray()));
+    }
+}
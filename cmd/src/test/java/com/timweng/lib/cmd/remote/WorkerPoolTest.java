@@ -0,0 +1,219 @@
+package com.timweng.lib.cmd.remote;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Debug;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WorkerPoolTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class Result implements WorkerPool.Callback {
+        final CountDownLatch mLatch;
+        final AtomicInteger mResultCount = new AtomicInteger();
+        final AtomicReference<String> mError = new AtomicReference<String>();
+
+        Result(int count) {
+            mLatch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onResult(Bundle result) {
+            mResultCount.incrementAndGet();
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onError(String message) {
+            mError.set(message);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void submit_pipelinesCallsOverConnections() throws Exception {
+        final AtomicInteger callCount = new AtomicInteger();
+        WorkerServer server = new WorkerServer(4).register("count", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) {
+                callCount.incrementAndGet();
+                return null;
+            }
+        });
+        WorkerPool pool = new WorkerPool(new InProcessTransport(server), 2);
+        Result result = new Result(500);
+        for (int i = 0; i < 500; i++) {
+            pool.submit("count", null, result);
+        }
+        result.await();
+        assertEquals(500, result.mResultCount.get());
+        assertEquals(500, callCount.get());
+        assertEquals(2, pool.getHealthyCount());
+        assertEquals(0, pool.getInFlightCount());
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void submit_reportsWorkerError() throws Exception {
+        WorkerServer server = new WorkerServer(1).register("fail", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) throws Exception {
+                throw new Exception("failed in worker");
+            }
+        });
+        WorkerPool pool = new WorkerPool(new InProcessTransport(server), 1);
+
+        Result failed = new Result(1);
+        pool.submit("fail", null, failed);
+        failed.await();
+        assertEquals("failed in worker", failed.mError.get());
+
+        Result unknown = new Result(1);
+        pool.submit("unknown", null, unknown);
+        unknown.await();
+        assertEquals("unknown type: unknown", unknown.mError.get());
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void submit_failsWithoutHealthyWorker() throws Exception {
+        WorkerPool pool = new WorkerPool(new WorkerTransport() {
+            @Override
+            public Channel connect(int index) throws IOException {
+                throw new IOException("no worker");
+            }
+        }, 2);
+        Result result = new Result(1);
+        pool.submit("any", null, result);
+        result.await();
+        assertEquals("no healthy worker", result.mError.get());
+        assertEquals(0, pool.getHealthyCount());
+    }
+
+    @Test
+    public void connect_givesEveryConnectionItsIndex() throws Exception {
+        WorkerServer server = new WorkerServer(2).register("echo", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) {
+                return input;
+            }
+        });
+        final InProcessTransport transport = new InProcessTransport(server);
+        final Set<Integer> indexSet = Collections.synchronizedSet(new HashSet<Integer>());
+        WorkerPool pool = new WorkerPool(new WorkerTransport() {
+            @Override
+            public Channel connect(int index) throws IOException {
+                indexSet.add(index);
+                return transport.connect(index);
+            }
+        }, 3);
+        Result result = new Result(30);
+        for (int i = 0; i < 30; i++) {
+            pool.submit("echo", null, result);
+        }
+        result.await();
+        assertEquals(30, result.mResultCount.get());
+        assertEquals(3, indexSet.size());
+        assertTrue(indexSet.contains(0) && indexSet.contains(1) && indexSet.contains(2));
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void submit_doesNotWaitForConnecting() throws Exception {
+        WorkerServer server = new WorkerServer(1).register("echo", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) {
+                return input;
+            }
+        });
+        final InProcessTransport transport = new InProcessTransport(server);
+        final CountDownLatch reachable = new CountDownLatch(1);
+        WorkerPool pool = new WorkerPool(new WorkerTransport() {
+            @Override
+            public Channel connect(int index) throws IOException {
+                try {
+                    reachable.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                return transport.connect(index);
+            }
+        }, 1);
+        Result result = new Result(1);
+        pool.submit("echo", null, result);
+        // The call waits for the connection instead of the caller
+        assertEquals(1, pool.getInFlightCount());
+        assertEquals(0, pool.getHealthyCount());
+        reachable.countDown();
+        result.await();
+        assertEquals(1, result.mResultCount.get());
+        assertEquals(1, pool.getHealthyCount());
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void submit_failsCallOfHungWorker() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        WorkerServer server = new WorkerServer(1).register("block", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) throws Exception {
+                blocked.await();
+                return null;
+            }
+        });
+        WorkerPool pool = new WorkerPool(new InProcessTransport(server), 1);
+        pool.setCallTimeout(100);
+        Result result = new Result(1);
+        pool.submit("block", null, result);
+        result.await();
+        assertEquals("call timeout", result.mError.get());
+        assertEquals(0, pool.getInFlightCount());
+        blocked.countDown();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void close_failsCallsInFlight() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        WorkerServer server = new WorkerServer(1).register("block", new RemoteFunction() {
+            @Override
+            public Bundle apply(Bundle input) throws Exception {
+                blocked.await();
+                return null;
+            }
+        });
+        WorkerPool pool = new WorkerPool(new InProcessTransport(server), 1);
+        Result result = new Result(1);
+        pool.submit("block", null, result);
+        pool.close();
+        result.await();
+        assertEquals("WorkerPool is closed", result.mError.get());
+        blocked.countDown();
+        server.close();
+    }
+}
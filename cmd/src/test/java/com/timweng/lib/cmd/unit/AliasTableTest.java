@@ -0,0 +1,45 @@
+package com.timweng.lib.cmd.unit;
+
+import com.timweng.lib.cmd.SplitRandom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AliasTableTest {
+
+    @Test
+    public void sample_followsWeights() throws Exception {
+        AliasTable table = new AliasTable(1, 0, 3, 4);
+        SplitRandom random = new SplitRandom(42);
+        int[] counts = new int[4];
+        int total = 80000;
+        for (int i = 0; i < total; i++) {
+            counts[table.sample(random)]++;
+        }
+        assertEquals(0, counts[1]);
+        assertEquals(1.0 / 8, (double) counts[0] / total, 0.01);
+        assertEquals(3.0 / 8, (double) counts[2] / total, 0.01);
+        assertEquals(4.0 / 8, (double) counts[3] / total, 0.01);
+    }
+
+    @Test
+    public void sample_sameSeedSameSequence() throws Exception {
+        AliasTable table = new AliasTable(5, 1, 2);
+        SplitRandom a = new SplitRandom(7).split();
+        SplitRandom b = new SplitRandom(7).split();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(table.sample(a), table.sample(b));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsZeroSum() throws Exception {
+        new AliasTable(0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsNegativeWeight() throws Exception {
+        new AliasTable(1, -1);
+    }
+}
@@ -0,0 +1,123 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.CommandSupplier;
+import com.timweng.lib.cmd.Debug;
+import com.timweng.lib.cmd.SplitRandom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ControlCommandTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class NoOpCommand extends FunctionCommand {
+        @Override
+        public Bundle function(Bundle inputBundle) {
+            return inputBundle;
+        }
+    }
+
+    private static IfCommand.Condition genCondition(final boolean result) {
+        return new IfCommand.Condition() {
+            @Override
+            public boolean test(Bundle bundle) {
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void ifCommand_selectsByCondition() throws Exception {
+        Command then = new NoOpCommand();
+        Command otherwise = new NoOpCommand();
+        SplitRandom random = new SplitRandom(1);
+        assertSame(then, new IfCommand(genCondition(true), then, otherwise).select(null, random));
+        assertSame(otherwise, new IfCommand(genCondition(false), then, otherwise).select(null, random));
+        assertSame(otherwise, new IfCommand(null, then, otherwise).select(null, random));
+    }
+
+    @Test
+    public void ifCommand_selectsNullWithoutBranch() throws Exception {
+        IfCommand command = new IfCommand(genCondition(false), new NoOpCommand(), null);
+        assertNull(command.select(null, new SplitRandom(1)));
+    }
+
+    @Test
+    public void switchCommand_selectsCaseOrDefault() throws Exception {
+        Command nullCase = new NoOpCommand();
+        Command defaultCase = new NoOpCommand();
+        SplitRandom random = new SplitRandom(1);
+
+        // A null bundle has no value, it matches the case of null
+        SwitchCommand command = new SwitchCommand("key").addCase(1, new NoOpCommand()).addCase(null, nullCase);
+        assertSame(nullCase, command.select(null, random));
+
+        command = new SwitchCommand("key").addCase(1, new NoOpCommand()).setDefault(defaultCase);
+        assertSame(defaultCase, command.select(null, random));
+    }
+
+    @Test
+    public void switchCommand_selectsNullWithoutMatch() throws Exception {
+        SwitchCommand command = new SwitchCommand("key").addCase(1, new NoOpCommand());
+        assertNull(command.select(null, new SplitRandom(1)));
+        assertEquals(2, command.getBranches().length);
+    }
+
+    @Test
+    public void randomCommand_selectsOneOfBranches() throws Exception {
+        Command a = new NoOpCommand();
+        Command b = new NoOpCommand();
+        RandomCommand command = new RandomCommand(a, b);
+        SplitRandom random = new SplitRandom(3);
+        boolean isASelected = false;
+        boolean isBSelected = false;
+        for (int i = 0; i < 100; i++) {
+            Command selected = command.select(null, random);
+            assertTrue(selected == a || selected == b);
+            isASelected |= selected == a;
+            isBSelected |= selected == b;
+        }
+        assertTrue(isASelected && isBSelected);
+    }
+
+    @Test
+    public void randomCommand_selectsNullWithoutBranches() throws Exception {
+        SplitRandom random = new SplitRandom(1);
+        assertNull(new RandomCommand().select(null, random));
+        assertNull(new RandomCommand((Command[]) null).select(null, random));
+        assertNull(new RandomCommand().setBranches(new CommandSupplier() {
+            @Override
+            public Command get() {
+                return null;
+            }
+        }).select(null, random));
+    }
+
+    @Test
+    public void randomCommand_createsOnlySelectedBranch() throws Exception {
+        final int[] createCount = new int[2];
+        RandomCommand command = new RandomCommand().setBranches(new CommandSupplier() {
+            @Override
+            public Command get() {
+                createCount[0]++;
+                return new NoOpCommand();
+            }
+        }, new CommandSupplier() {
+            @Override
+            public Command get() {
+                createCount[1]++;
+                return new NoOpCommand();
+            }
+        });
+        assertNotNull(command.select(null, new SplitRandom(5)));
+        assertEquals(1, createCount[0] + createCount[1]);
+    }
+}
@@ -0,0 +1,168 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelineCommandTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class DoneListener implements Command.OnCommandUpdateListener {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile boolean mIsError = false;
+
+        @Override
+        public void onComplete(Command callCommand, Bundle bundle) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onError(Command callCommand, Bundle bundle) {
+            mIsError = true;
+            mLatch.countDown();
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return mLatch.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class CountSource extends PipelineCommand.Source {
+        final int mCount;
+
+        CountSource(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public void produce(Bundle input, PipelineCommand.Emitter emitter) throws Exception {
+            for (int i = 0; i < mCount; i++) {
+                emitter.emit(i);
+            }
+        }
+    }
+
+    private static class DoubleStage extends PipelineCommand.Stage {
+        @Override
+        public void onItem(Object item, PipelineCommand.Emitter emitter) throws Exception {
+            emitter.emit((Integer) item * 2);
+        }
+    }
+
+    private static class CollectStage extends PipelineCommand.Stage {
+        final List<Object> mItemList = Collections.synchronizedList(new ArrayList<Object>());
+        volatile boolean mIsEnded = false;
+
+        @Override
+        public void onItem(Object item, PipelineCommand.Emitter emitter) throws Exception {
+            mItemList.add(item);
+        }
+
+        @Override
+        public Bundle onEnd(PipelineCommand.Emitter emitter) throws Exception {
+            mIsEnded = true;
+            return null;
+        }
+    }
+
+    @Test
+    public void start_passesEveryItemInOrder() throws Exception {
+        CollectStage collect = new CollectStage();
+        // A capacity of 1 makes every Stage wait for the next one
+        PipelineCommand command = new PipelineCommand(new CountSource(5000), new DoubleStage(), collect)
+                .setCapacity(1);
+        DoneListener listener = new DoneListener();
+        command.setListener(listener);
+
+        assertTrue(command.start(null, null));
+        assertTrue(listener.await(10000));
+        assertFalse(listener.mIsError);
+        assertTrue(collect.mIsEnded);
+        assertEquals(5000, collect.mItemList.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i * 2, collect.mItemList.get(i));
+        }
+        assertFalse(command.isProcessing());
+    }
+
+    @Test
+    public void setCapacity_ignoresNonPositive() throws Exception {
+        CollectStage collect = new CollectStage();
+        PipelineCommand command = new PipelineCommand(new CountSource(100), collect).setCapacity(0).setCapacity(-1);
+        DoneListener listener = new DoneListener();
+        command.setListener(listener);
+
+        assertTrue(command.start(null, null));
+        assertTrue(listener.await(10000));
+        assertEquals(100, collect.mItemList.size());
+    }
+
+    @Test
+    public void pause_holdsTheResultUntilResume() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CollectStage collect = new CollectStage();
+        PipelineCommand command = new PipelineCommand(new PipelineCommand.Source() {
+            @Override
+            public void produce(Bundle input, PipelineCommand.Emitter emitter) throws Exception {
+                emitter.emit(1);
+                release.await();
+            }
+        }, collect);
+        DoneListener listener = new DoneListener();
+        command.setListener(listener);
+
+        assertTrue(command.start(null, null));
+        assertTrue(command.pause());
+        release.countDown();
+        assertFalse(listener.await(200));
+
+        assertTrue(command.resume());
+        assertTrue(listener.await(10000));
+        assertEquals(1, collect.mItemList.size());
+    }
+
+    @Test
+    public void stop_endsBlockedStagesWithoutCompleting() throws Exception {
+        final CountDownLatch isFull = new CountDownLatch(1);
+        PipelineCommand command = new PipelineCommand(new PipelineCommand.Source() {
+            @Override
+            public void produce(Bundle input, PipelineCommand.Emitter emitter) throws Exception {
+                for (int i = 0; ; i++) {
+                    if (i == 8) {
+                        isFull.countDown();
+                    }
+                    emitter.emit(i);
+                }
+            }
+        }, new PipelineCommand.Stage() {
+            @Override
+            public void onItem(Object item, PipelineCommand.Emitter emitter) throws Exception {
+                // A slow Stage, the Source waits on the full queue
+                Thread.sleep(50);
+            }
+        }).setCapacity(2);
+        DoneListener listener = new DoneListener();
+        command.setListener(listener);
+
+        assertTrue(command.start(null, null));
+        assertTrue(isFull.await(10, TimeUnit.SECONDS));
+        assertTrue(command.stop());
+        assertFalse(listener.await(200));
+        assertFalse(command.isProcessing());
+    }
+}
@@ -0,0 +1,94 @@
+package com.timweng.lib.cmd.unit;
+
+import android.os.Bundle;
+
+import com.timweng.lib.cmd.Command;
+import com.timweng.lib.cmd.Debug;
+import com.timweng.lib.cmd.SplitRandom;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RandomCommandTest {
+
+    static {
+        // android.util.Log is not available in local unit tests
+        Debug.sIsShowLog = false;
+    }
+
+    private static class NoOpCommand extends FunctionCommand {
+        @Override
+        public Bundle function(Bundle inputBundle) {
+            return inputBundle;
+        }
+    }
+
+    private static Command[] genBranches(int count) {
+        Command[] branches = new Command[count];
+        for (int i = 0; i < count; i++) {
+            branches[i] = new NoOpCommand();
+        }
+        return branches;
+    }
+
+    private static int indexOf(Command[] branches, Command command) {
+        for (int i = 0; i < branches.length; i++) {
+            if (branches[i] == command) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Select 200 times with the generator of a run, the way CommandDirector splits one from its seed
+     */
+    private static int[] replay(long seed, RandomCommand command) {
+        SplitRandom runRandom = new SplitRandom(seed).split();
+        Command[] branches = command.getCommands();
+        int[] choices = new int[200];
+        for (int i = 0; i < choices.length; i++) {
+            choices[i] = indexOf(branches, command.select(null, runRandom));
+        }
+        return choices;
+    }
+
+    @Test
+    public void select_sameSeedSameChoices() throws Exception {
+        int[] first = replay(2016, new RandomCommand(genBranches(5)));
+        int[] second = replay(2016, new RandomCommand(genBranches(5)));
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void select_sameSeedSameWeightedChoices() throws Exception {
+        int[] first = replay(7, new RandomCommand(genBranches(3)).setWeights(1, 2, 7));
+        int[] second = replay(7, new RandomCommand(genBranches(3)).setWeights(1, 2, 7));
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void select_otherSeedOtherChoices() throws Exception {
+        int[] first = replay(1, new RandomCommand(genBranches(5)));
+        int[] second = replay(2, new RandomCommand(genBranches(5)));
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void split_runsOfOneSeedReplayInOrder() throws Exception {
+        // Two directors of the same seed give their n-th runs the same generator
+        SplitRandom a = new SplitRandom(99);
+        SplitRandom b = new SplitRandom(99);
+        RandomCommand command = new RandomCommand(genBranches(4));
+        for (int run = 0; run < 5; run++) {
+            SplitRandom runA = a.split();
+            SplitRandom runB = b.split();
+            for (int i = 0; i < 50; i++) {
+                assertSame(command.select(null, runA), command.select(null, runB));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.timweng.lib.cmd.unit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+
+    @Test
+    public void capacity_roundsUpToPowerOfTwo() throws Exception {
+        assertEquals(1, new SpscQueue<Object>(1).capacity());
+        assertEquals(8, new SpscQueue<Object>(5).capacity());
+        assertEquals(64, new SpscQueue<Object>(64).capacity());
+    }
+
+    @Test
+    public void offer_failsWhenFull() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+    }
+
+    @Test
+    public void poll_keepsOrderAcrossWrap() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(2);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offer_rejectsNull() throws Exception {
+        new SpscQueue<Object>(2).offer(null);
+    }
+
+    @Test
+    public void poll_sharedByTwoThreads() throws Exception {
+        final int count = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(16);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            Integer item;
+            while ((item = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, item.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,64 @@
+package com.timweng.lib.cmd.unit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void tryAcquire_burstUpToCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(3, 10, 0);
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(SECOND / 10, bucket.tryAcquire(0));
+    }
+
+    @Test
+    public void tryAcquire_refillsAtRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 10, 0);
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(SECOND / 20, bucket.tryAcquire(SECOND / 20));
+        assertEquals(0, bucket.tryAcquire(SECOND / 10));
+        assertTrue(bucket.tryAcquire(SECOND / 10) > 0);
+    }
+
+    @Test
+    public void tryAcquire_doesNotSaveMoreThanCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(2, 10, 0);
+        long later = 100 * SECOND;
+        assertEquals(0, bucket.tryAcquire(later));
+        assertEquals(0, bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later) > 0);
+    }
+
+    @Test
+    public void tryAcquire_sharedByThreads() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1000, 0.001);
+        final int[] counts = new int[4];
+        Thread[] threads = new Thread[counts.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (bucket.tryAcquire() == 0) {
+                            counts[index]++;
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        int total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += counts[i];
+        }
+        assertEquals(1000, total);
+    }
+}